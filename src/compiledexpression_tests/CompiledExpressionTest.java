@@ -0,0 +1,468 @@
+package compiledexpression_tests;
+
+import evaluator.Bindings;
+import evaluator.CompilationResult;
+import evaluator.CompiledExpression;
+import evaluator.Evaluator;
+import evaluator.ExpressionCache;
+import evaluator.ExpressionInterner;
+import evaluator.IncrementalEvaluator;
+import evaluator.Lexer;
+import evaluator.LexicalErrorException;
+import evaluator.ResultCache;
+import evaluator.SyntaxErrorException;
+import evaluator.SyntaxTree;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class CompiledExpressionTest {
+    private static CompiledExpression compile(String expression)
+    {
+        return new SyntaxTree(new Lexer(expression).tokenQueue()).compile();
+    }
+
+    private static double[][] randomColumns(int count, int rows)
+    {
+        Random random = new Random(42);
+        double[][] columns = new double[count][rows];
+        for (double[] column: columns)
+        {
+            for (int i = 0; i < rows; i++)
+            {
+                column[i] = random.nextDouble() * 10 - 5;
+            }
+        }
+        return columns;
+    }
+
+    @Test
+    public void batchTests()
+    {
+        String[] expressions = new String[]{
+                "1 + 2 * 3",
+                "x",
+                "(x * y + 1) * (x * y + 1) - x * y / (z - 2.5)",
+                "x - (y - (z - (x - (y - 3))))"
+        };
+        int rows = 1000;
+        double[][] columns = randomColumns(3, rows);
+
+        for (String source: expressions)
+        {
+            CompiledExpression expression = compile(source);
+            double[] out = new double[rows];
+            expression.evaluateBatch(columns, out);
+
+            double[] row = new double[columns.length];
+            for (int i = 0; i < rows; i++)
+            {
+                for (int slot = 0; slot < columns.length; slot++)
+                {
+                    row[slot] = columns[slot][i];
+                }
+                Assert.assertEquals(source, expression.evaluate(row), out[i], 0);
+            }
+        }
+    }
+
+    @Test
+    public void namedBatchTests()
+    {
+        CompiledExpression expression = compile("price * quantity - discount");
+        Map<String, double[]> columns = new HashMap<>();
+        columns.put("discount", new double[]{1, 2, 3});
+        columns.put("price", new double[]{10, 20, 30});
+        columns.put("quantity", new double[]{2, 2, 2});
+
+        double[] out = new double[3];
+        expression.evaluateBatch(columns, out);
+        Assert.assertArrayEquals(new double[]{19, 38, 57}, out, 0);
+
+        double[] partial = new double[3];
+        double[][] bySlot = new double[][]{columns.get("price"), columns.get("quantity"), columns.get("discount")};
+        expression.evaluateBatch(bySlot, partial, 1, 3);
+        Assert.assertArrayEquals(new double[]{0, 38, 57}, partial, 0);
+    }
+
+    @Test
+    public void parallelTests()
+    {
+        CompiledExpression expression = compile("(x * y + 1) / (z - 2.5) - x * y");
+        int rows = 100003;
+        double[][] columns = randomColumns(3, rows);
+
+        double[] expected = new double[rows];
+        expression.evaluateBatch(columns, expected);
+
+        double[] out = new double[rows];
+        expression.evaluateParallel(columns, out);
+        Assert.assertArrayEquals(expected, out, 0);
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            double[] small = new double[rows];
+            expression.evaluateParallel(columns, small, 100, pool);
+            Assert.assertArrayEquals(expected, small, 0);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void incrementalTests()
+    {
+        CompiledExpression expression = compile("(x * y + 1) * (x * y + 1) - x * y / (z - 2.5) + x * 2");
+        IncrementalEvaluator incremental = expression.incremental();
+        Assert.assertTrue(Double.isNaN(incremental.evaluate()));
+
+        Random random = new Random(7);
+        double[] row = new double[]{1, 2, 3};
+        incremental.set("x", 1).set("y", 2).set("z", 3);
+        for (int i = 0; i < 1000; i++)
+        {
+            Assert.assertEquals(expression.evaluate(row), incremental.evaluate(), 0);
+            int slot = random.nextInt(row.length);
+            row[slot] = random.nextInt(10) - 5;
+            incremental.set(slot, row[slot]);
+            Assert.assertEquals(row[slot], incremental.get(slot), 0);
+        }
+
+        Assert.assertEquals(7, compile("1 + 2 * 3").incremental().evaluate(), 0);
+    }
+
+    @Test
+    public void serializationTests()
+    {
+        String[] expressions = new String[]{
+                "1 + 2 * 3",
+                "x",
+                "(x * y + 1) * (x * y + 1) - x * y / (z - 2.5)",
+                "x - (y - (z - (x - (y - 3))))",
+                "0 - 0 + x / 0"
+        };
+        CompiledExpression[] compiled = new CompiledExpression[expressions.length];
+        int size = 0;
+        for (int i = 0; i < expressions.length; i++)
+        {
+            compiled[i] = compile(expressions[i]);
+            size += compiled[i].serializedSize();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        for (CompiledExpression expression: compiled)
+        {
+            expression.writeTo(buffer);
+        }
+        Assert.assertFalse(buffer.hasRemaining());
+
+        buffer.flip();
+        double[] row = new double[]{1.5, -2, 4};
+        for (CompiledExpression expression: compiled)
+        {
+            CompiledExpression loaded = CompiledExpression.readFrom(buffer);
+            Assert.assertEquals(expression.toString(), loaded.toString());
+            Assert.assertEquals(expression.variables(), loaded.variables());
+            Assert.assertEquals(expression.evaluate(row), loaded.evaluate(row), 0);
+            Assert.assertEquals(expression.evaluate(row),
+                    loaded.withBackend(CompiledExpression.Backend.Bytecode).evaluate(row), 0);
+
+            IncrementalEvaluator incremental = loaded.incremental();
+            for (int slot = 0; slot < loaded.slotCount(); slot++)
+            {
+                incremental.set(slot, row[slot]);
+            }
+            Assert.assertEquals(expression.evaluate(row), incremental.evaluate(), 0);
+        }
+        Assert.assertFalse(buffer.hasRemaining());
+
+        try {
+            CompiledExpression.readFrom(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6}));
+            Assert.fail("Garbage was read as an expression");
+        }
+        catch (IllegalArgumentException ignored)
+        {
+        }
+
+        //repeated constants share a pool entry, the code is the same size
+        Assert.assertEquals(compile("x * 2 + y * 3 + z * 5").serializedSize() - 2 * 8,
+                compile("x * 2 + y * 2 + z * 2").serializedSize());
+
+        ByteBuffer valid = ByteBuffer.allocate(compiled[2].serializedSize());
+        compiled[2].writeTo(valid);
+        byte[] bytes = valid.array();
+        for (int length = 0; length < bytes.length; length++)
+        {
+            try {
+                CompiledExpression.readFrom(ByteBuffer.wrap(bytes, 0, length));
+                Assert.fail("An expression cut at " + length + " bytes was read");
+            }
+            catch (IllegalArgumentException ignored)
+            {
+            }
+        }
+
+        //max stack and temporaries follow the magic, version, name count and the names x, y and z
+        int header = 4 + 2 + 2 + 3 * (2 + 1);
+        for (int field: new int[]{header, header + 4})
+        {
+            for (int value: new int[]{Integer.MAX_VALUE, -1})
+            {
+                ByteBuffer corrupt = ByteBuffer.wrap(bytes.clone());
+                corrupt.putInt(field, value);
+                try {
+                    CompiledExpression.readFrom(corrupt);
+                    Assert.fail("A corrupt header was read");
+                }
+                catch (IllegalArgumentException ignored)
+                {
+                }
+            }
+        }
+        ByteBuffer longName = ByteBuffer.wrap(bytes.clone());
+        longName.putShort(4 + 2 + 2, (short) 0xffff);
+        try {
+            CompiledExpression.readFrom(longName);
+            Assert.fail("A name longer than the buffer was read");
+        }
+        catch (IllegalArgumentException ignored)
+        {
+        }
+    }
+
+    @Test
+    public void internerTests()
+    {
+        ExpressionInterner interner = new ExpressionInterner();
+        CompiledExpression first = interner.compile("(a * b + c) * 2");
+        Assert.assertEquals(7, interner.size());
+
+        //only 3 and the division are new
+        CompiledExpression second = interner.compile("(a * b + c) / 3");
+        Assert.assertEquals(9, interner.size());
+        interner.compile("(a * b + c) * 2");
+        Assert.assertEquals(9, interner.size());
+
+        Assert.assertEquals(14, first.evaluate(2, 3, 1), 0);
+        Assert.assertEquals(7, second.evaluate(3, 2, 15), 0);
+
+        ExpressionCache cache = new ExpressionCache(4, interner);
+        Assert.assertEquals(14, cache.compile("(a * b + c) * 2").evaluate(2, 3, 1), 0);
+        Assert.assertEquals(9, interner.size());
+    }
+
+    @Test
+    public void compileAllTests()
+    {
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+        {
+            switch (i % 10)
+            {
+                case 3:
+                    sources.add("x_" + i);
+                    break;
+                case 7:
+                    sources.add("(x + " + i);
+                    break;
+                default:
+                    sources.add("x * " + i + " + 1");
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<CompilationResult> results = Evaluator.compileAll(sources, pool);
+            Assert.assertEquals(sources.size(), results.size());
+            for (int i = 0; i < results.size(); i++)
+            {
+                CompilationResult result = results.get(i);
+                Assert.assertEquals(sources.get(i), result.source());
+                switch (i % 10)
+                {
+                    case 3:
+                        Assert.assertTrue(result.error() instanceof LexicalErrorException);
+                        break;
+                    case 7:
+                        Assert.assertTrue(result.error() instanceof SyntaxErrorException);
+                        break;
+                    default:
+                        Assert.assertTrue(result.isSuccess());
+                        Assert.assertEquals(2 * i + 1, result.expression().evaluate(2), 0);
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        Assert.assertTrue(Evaluator.compileAll(new ArrayList<String>()).isEmpty());
+    }
+
+    @Test
+    public void tryCompileTests()
+    {
+        Map<String, Integer> lexicalErrors = new HashMap<>();
+        lexicalErrors.put("x + y_z", 5);
+        lexicalErrors.put("1 + 2.3.4", 4);
+        lexicalErrors.put("1 % 2", 2);
+        for (Map.Entry<String, Integer> test: lexicalErrors.entrySet())
+        {
+            CompilationResult result = Evaluator.tryCompile(test.getKey());
+            Assert.assertEquals(CompilationResult.ErrorKind.Lexical, result.errorKind());
+            Assert.assertEquals(test.getKey(), (int) test.getValue(), result.errorOffset());
+            Assert.assertEquals(0, result.error().getStackTrace().length);
+        }
+
+        Map<String, Integer> syntaxErrors = new HashMap<>();
+        syntaxErrors.put("(1 + 2", 6);
+        syntaxErrors.put("1 + 2)", 5);
+        syntaxErrors.put("1 * + 2", 4);
+        syntaxErrors.put("1 2", 3);
+        for (Map.Entry<String, Integer> test: syntaxErrors.entrySet())
+        {
+            CompilationResult result = Evaluator.tryCompile(test.getKey());
+            Assert.assertEquals(CompilationResult.ErrorKind.Syntax, result.errorKind());
+            Assert.assertEquals(test.getKey(), (int) test.getValue(), result.errorOffset());
+        }
+
+        CompilationResult result = Evaluator.tryCompile("x * 2");
+        Assert.assertNull(result.errorKind());
+        Assert.assertEquals(-1, result.errorOffset());
+        Assert.assertEquals(6, result.expression().evaluate(3), 0);
+
+        //the throwing API still reports where the error is, with a stack trace
+        try {
+            new SyntaxTree(Lexer.scan("(1 + 2"));
+            Assert.fail("Unbalanced brackets were accepted");
+        }
+        catch (SyntaxErrorException e)
+        {
+            Assert.assertEquals(6, e.offset());
+            Assert.assertTrue(e.getStackTrace().length > 0);
+        }
+    }
+
+    @Test
+    public void resultCacheTests() throws InterruptedException
+    {
+        CompiledExpression expression = compile("x * y + 1");
+        ResultCache cache = new ResultCache(2);
+        double[] values = new double[]{2, 3};
+        Assert.assertEquals(7, cache.evaluate(expression, values), 0);
+        values[1] = 4;
+        Assert.assertEquals(9, cache.evaluate(expression, values), 0);
+        Assert.assertEquals(7, cache.evaluate(expression, 2, 3), 0);
+        Map<String, Double> named = new HashMap<>();
+        named.put("x", 2.);
+        named.put("y", 4.);
+        Assert.assertEquals(9, cache.evaluate(expression, named), 0);
+        Assert.assertEquals(2, cache.misses());
+        Assert.assertEquals(2, cache.hits());
+        Assert.assertEquals(0.5, cache.hitRate(), 0);
+
+        //a different instance of the same formula is a different key
+        cache.evaluate(compile("x * y + 1"), 2, 3);
+        Assert.assertEquals(3, cache.misses());
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.evictions());
+
+        ResultCache expiring = new ResultCache(16, 1, TimeUnit.MILLISECONDS);
+        expiring.evaluate(expression, 1, 1);
+        Thread.sleep(20);
+        expiring.evaluate(expression, 1, 1);
+        Assert.assertEquals(0, expiring.hits());
+        Assert.assertEquals(1, expiring.expirations());
+    }
+
+    @Test
+    public void concurrentTests() throws Exception
+    {
+        final String source = "(x * y + 1) * (x * y + 1) - x * y / (z - 2.5)";
+        final SyntaxTree tree = new SyntaxTree(new Lexer(source).tokenQueue());
+        final CompiledExpression interpreted = tree.compile();
+        final CompiledExpression generated = tree.compile(CompiledExpression.Backend.Bytecode);
+        final ExpressionCache cache = new ExpressionCache(4);
+
+        final int rows = 2000;
+        final double[][] columns = randomColumns(3, rows);
+        final double[] expected = new double[rows];
+        interpreted.evaluateBatch(columns, expected);
+
+        int threads = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++)
+            {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception
+                    {
+                        start.await();
+                        Bindings bindings = generated.bindings();
+                        Map<String, Double> values = new HashMap<>();
+                        int mismatches = 0;
+                        for (int i = 0; i < rows; i++)
+                        {
+                            double x = columns[0][i];
+                            double y = columns[1][i];
+                            double z = columns[2][i];
+                            values.put("x", x);
+                            values.put("y", y);
+                            values.put("z", z);
+                            bindings.set(0, x).set(1, y).set(2, z);
+
+                            double[] actual = new double[]{
+                                    tree.evaluate(values),
+                                    interpreted.evaluate(x, y, z),
+                                    generated.evaluate(x, y, z),
+                                    bindings.evaluate(),
+                                    cache.compile(source).evaluate(values)
+                            };
+                            for (double result: actual)
+                            {
+                                if (Double.compare(result, expected[i]) != 0)
+                                {
+                                    mismatches++;
+                                }
+                            }
+                        }
+                        return mismatches;
+                    }
+                }));
+            }
+
+            start.countDown();
+            for (Future<Integer> result: results)
+            {
+                Assert.assertEquals(0, (int) result.get());
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        //evaluation with a map leaves the shared tree as it was
+        Assert.assertFalse(tree.isComputable());
+        Assert.assertEquals(3, tree.variables().size());
+    }
+}
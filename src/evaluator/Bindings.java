@@ -0,0 +1,48 @@
+package evaluator;
+
+import java.util.Arrays;
+
+/**
+ * Reusable variable values for one {@link CompiledExpression}, backed by a {@code double[]}
+ * indexed by slot. Unset variables read as NaN. Not thread-safe, use one instance per thread.
+ */
+public final class Bindings {
+    private final CompiledExpression expression;
+    private final double[] values;
+    private final double[] stack;
+
+    Bindings(CompiledExpression expression)
+    {
+        this.expression = expression;
+        values = new double[expression.slotCount()];
+        Arrays.fill(values, Double.NaN);
+        stack = new double[expression.frameSize()];
+    }
+
+    public Bindings set(int slot, double value)
+    {
+        values[slot] = value;
+        return this;
+    }
+
+    public Bindings set(String name, double value)
+    {
+        int slot = expression.slot(name);
+        if (slot < 0)
+        {
+            throw new IllegalArgumentException("expression has no variable " + name);
+        }
+        values[slot] = value;
+        return this;
+    }
+
+    public double get(int slot)
+    {
+        return values[slot];
+    }
+
+    public double evaluate()
+    {
+        return expression.evaluate(values, stack);
+    }
+}
@@ -0,0 +1,341 @@
+package evaluator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Translates a {@link Program} into a class implementing {@link DoubleArrayFunction} whose
+ * single method is the whole expression as straight-line JVM bytecode. The generated code has no branches,
+ * so a version 52 class file without stack map frames is enough.
+ */
+final class BytecodeCompiler {
+    private static final int MAX_CODE_LENGTH = 65535;
+    private static final int MAX_CONSTANTS = 65535;
+    private static final String INTERFACE = DoubleArrayFunction.class.getName().replace('.', '/');
+    private static final AtomicLong classCounter = new AtomicLong();
+
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int DCONST_0 = 0x0e;
+    private static final int DCONST_1 = 0x0f;
+    private static final int DLOAD = 0x18;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int DALOAD = 0x31;
+    private static final int DSTORE = 0x39;
+    private static final int DUP2 = 0x5c;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DDIV = 0x6f;
+    private static final int DRETURN = 0xaf;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int WIDE = 0xc4;
+
+    private static final class Loader extends ClassLoader {
+        Loader()
+        {
+            super(DoubleArrayFunction.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes)
+        {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private static final class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) throws IOException
+        {
+            Integer index = entries.get("U" + value);
+            if (index == null)
+            {
+                out.writeByte(1);
+                out.writeUTF(value);
+                index = add("U" + value, 1);
+            }
+            return index;
+        }
+
+        int classRef(String internalName) throws IOException
+        {
+            Integer index = entries.get("C" + internalName);
+            if (index == null)
+            {
+                int name = utf8(internalName);
+                out.writeByte(7);
+                out.writeShort(name);
+                index = add("C" + internalName, 1);
+            }
+            return index;
+        }
+
+        int methodRef(String owner, String name, String descriptor) throws IOException
+        {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            int nameAndType = add(null, 1);
+            out.writeByte(10);
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+            return add(null, 1);
+        }
+
+        int doubleConstant(double value) throws IOException
+        {
+            String key = "D" + Double.doubleToRawLongBits(value);
+            Integer index = entries.get(key);
+            if (index == null)
+            {
+                out.writeByte(6);
+                out.writeDouble(value);
+                //doubles take two entries
+                index = add(key, 2);
+            }
+            return index;
+        }
+
+        int intConstant(int value) throws IOException
+        {
+            String key = "I" + value;
+            Integer index = entries.get(key);
+            if (index == null)
+            {
+                out.writeByte(3);
+                out.writeInt(value);
+                index = add(key, 1);
+            }
+            return index;
+        }
+
+        private int add(String key, int size)
+        {
+            int index = count;
+            count += size;
+            if (key != null)
+            {
+                entries.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    private BytecodeCompiler()
+    {
+    }
+
+    /**
+     * Returns null if the expression doesn't fit into a single JVM method.
+     */
+    static DoubleArrayFunction compile(Program program)
+    {
+        String className = "evaluator/generated/Formula" + classCounter.incrementAndGet();
+        byte[] classFile;
+        try {
+            classFile = generate(className, program);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        if (classFile == null)
+        {
+            return null;
+        }
+
+        try {
+            Class<?> generated = new Loader().define(className.replace('/', '.'), classFile);
+            return (DoubleArrayFunction) generated.getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException("could not instantiate generated expression class", e);
+        }
+    }
+
+    private static byte[] generate(String className, Program program) throws IOException
+    {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(className);
+        int superClass = pool.classRef("java/lang/Object");
+        int interfaceClass = pool.classRef(INTERFACE);
+        int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+        int initName = pool.utf8("<init>");
+        int initDescriptor = pool.utf8("()V");
+        int applyName = pool.utf8("applyAsDouble");
+        int applyDescriptor = pool.utf8("([D)D");
+        int codeName = pool.utf8("Code");
+
+        ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+        DataOutputStream code = new DataOutputStream(codeBytes);
+        int stack = 0;
+        int maxStack = 2;
+        for (int instruction: program.code)
+        {
+            switch (Program.opcode(instruction))
+            {
+                case Program.CONST:
+                    double value = program.constants[Program.operand(instruction)];
+                    if (Double.doubleToRawLongBits(value) == 0L)
+                    {
+                        code.writeByte(DCONST_0);
+                    }
+                    else if (value == 1.)
+                    {
+                        code.writeByte(DCONST_1);
+                    }
+                    else
+                    {
+                        code.writeByte(LDC2_W);
+                        code.writeShort(pool.doubleConstant(value));
+                    }
+                    stack += 2;
+                    break;
+                case Program.LOAD:
+                    code.writeByte(ALOAD_1);
+                    pushInt(code, pool, Program.operand(instruction));
+                    code.writeByte(DALOAD);
+                    maxStack = Math.max(maxStack, stack + 2);
+                    stack += 2;
+                    break;
+                case Program.ADD:
+                    code.writeByte(DADD);
+                    stack -= 2;
+                    break;
+                case Program.SUB:
+                    code.writeByte(DSUB);
+                    stack -= 2;
+                    break;
+                case Program.MUL:
+                    code.writeByte(DMUL);
+                    stack -= 2;
+                    break;
+                case Program.DIV:
+                    code.writeByte(DDIV);
+                    stack -= 2;
+                    break;
+                case Program.TEE:
+                    code.writeByte(DUP2);
+                    maxStack = Math.max(maxStack, stack + 2);
+                    local(code, DSTORE, Program.operand(instruction));
+                    break;
+                case Program.LOAD_TEMP:
+                    local(code, DLOAD, Program.operand(instruction));
+                    stack += 2;
+                    break;
+            }
+            maxStack = Math.max(maxStack, stack);
+        }
+        code.writeByte(DRETURN);
+
+        if (codeBytes.size() > MAX_CODE_LENGTH || pool.count > MAX_CONSTANTS)
+        {
+            return null;
+        }
+
+        ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(classBytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(52);
+        out.writeShort(pool.count);
+        pool.bytes.writeTo(out);
+        //public final super
+        out.writeShort(0x0031);
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(interfaceClass);
+        out.writeShort(0);
+
+        out.writeShort(2);
+        byte[] init = new byte[]{
+                (byte) ALOAD_0,
+                (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit,
+                (byte) RETURN
+        };
+        writeMethod(out, initName, initDescriptor, codeName, 1, 1, init);
+        //this, the double[] argument and the temporaries, which are doubles taking two locals each
+        writeMethod(out, applyName, applyDescriptor, codeName, maxStack, 2 + 2 * program.temps,
+                codeBytes.toByteArray());
+
+        out.writeShort(0);
+        return classBytes.toByteArray();
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int descriptor, int codeName,
+                                    int maxStack, int maxLocals, byte[] code) throws IOException
+    {
+        out.writeShort(0x0001);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        //no exception table, no attributes
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+
+    private static void local(DataOutputStream code, int opcode, int temp) throws IOException
+    {
+        int index = 2 + 2 * temp;
+        if (index <= 0xff)
+        {
+            code.writeByte(opcode);
+            code.writeByte(index);
+        }
+        else
+        {
+            code.writeByte(WIDE);
+            code.writeByte(opcode);
+            code.writeShort(index);
+        }
+    }
+
+    private static void pushInt(DataOutputStream code, ConstantPool pool, int value) throws IOException
+    {
+        if (value <= 5)
+        {
+            code.writeByte(ICONST_0 + value);
+        }
+        else if (value <= Byte.MAX_VALUE)
+        {
+            code.writeByte(BIPUSH);
+            code.writeByte(value);
+        }
+        else if (value <= Short.MAX_VALUE)
+        {
+            code.writeByte(SIPUSH);
+            code.writeShort(value);
+        }
+        else
+        {
+            code.writeByte(LDC_W);
+            code.writeShort(pool.intConstant(value));
+        }
+    }
+}
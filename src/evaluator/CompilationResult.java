@@ -0,0 +1,85 @@
+package evaluator;
+
+/**
+ * Outcome of compiling one source, see {@link Evaluator#tryCompile} and {@link Evaluator#compileAll}:
+ * either the compiled expression or the lexical or syntax error it failed with, and where.
+ * Errors are created without stack traces, so failing is about as cheap as succeeding.
+ */
+public final class CompilationResult {
+    public enum ErrorKind
+    {
+        Lexical,
+        Syntax
+    }
+
+    private final String source;
+    private final CompiledExpression expression;
+    private final SourceErrorException error;
+
+    private CompilationResult(String source, CompiledExpression expression, SourceErrorException error)
+    {
+        this.source = source;
+        this.expression = expression;
+        this.error = error;
+    }
+
+    static CompilationResult compile(String source, ParseLimits limits)
+    {
+        try {
+            TokenStream tokens = new TokenStream();
+            Lexer.scan(source, tokens, false, limits);
+            return new CompilationResult(source, new SyntaxTree(tokens, false, limits).compile(), null);
+        }
+        catch (SourceErrorException e)
+        {
+            return new CompilationResult(source, null, e);
+        }
+    }
+
+    public String source()
+    {
+        return source;
+    }
+
+    public boolean isSuccess()
+    {
+        return error == null;
+    }
+
+    /**
+     * @throws IllegalStateException if the source didn't compile, with the error as its cause
+     */
+    public CompiledExpression expression()
+    {
+        if (error != null)
+        {
+            throw new IllegalStateException("expression failed to compile: " + error.getMessage(), error);
+        }
+        return expression;
+    }
+
+    //LexicalErrorException or SyntaxErrorException, null if the source compiled
+    public IllegalArgumentException error()
+    {
+        return error;
+    }
+
+    //null if the source compiled
+    public ErrorKind errorKind()
+    {
+        if (error == null)
+        {
+            return null;
+        }
+        return error instanceof LexicalErrorException ? ErrorKind.Lexical : ErrorKind.Syntax;
+    }
+
+    /**
+     * Character offset of the error in the source, the end of the source for input that ends
+     * too early, -1 if the source compiled.
+     */
+    public int errorOffset()
+    {
+        return error == null ? -1 : error.offset();
+    }
+}
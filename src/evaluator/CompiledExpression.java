@@ -0,0 +1,580 @@
+package evaluator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Immutable form of a {@link SyntaxTree}. Variables are bound per evaluation,
+ * so one instance can be evaluated any number of times, from any number of threads.
+ * <p>
+ * Every variable gets a dense slot, numbered in the order of first appearance.
+ * {@link #evaluate(double...)} and {@link Bindings} read variables by slot,
+ * without hashing or boxing.
+ */
+public final class CompiledExpression {
+    public static final int DEFAULT_SPLIT_THRESHOLD = 1 << 16;
+
+    public enum Backend
+    {
+        //runs the flattened postfix program
+        Interpreter,
+        //generates a JVM class for the expression, so the JIT can compile the formula as a whole.
+        //Falls back to the interpreter for expressions too large for a single method
+        Bytecode
+    }
+
+    //nodes are shared between parents, see ExpressionBuilder, so they compare children by identity
+    static final class Node
+    {
+        final Token.TokenType type;
+        final double value;
+        final String name;
+        final Node left;
+        final Node right;
+        private final int hash;
+
+        private Node(Token.TokenType type, double value, String name, Node left, Node right)
+        {
+            this.type = type;
+            this.value = value;
+            this.name = name;
+            this.left = left;
+            this.right = right;
+
+            int h = type.hashCode();
+            h = 31 * h + Double.hashCode(value);
+            h = 31 * h + (name == null ? 0 : name.hashCode());
+            h = 31 * h + System.identityHashCode(left);
+            h = 31 * h + System.identityHashCode(right);
+            hash = h;
+        }
+
+        static Node number(double value)
+        {
+            return new Node(Token.TokenType.Number, value, null, null, null);
+        }
+
+        static Node variable(String name)
+        {
+            return new Node(Token.TokenType.Variable, 0, name, null, null);
+        }
+
+        static Node operation(Token.TokenType type, Node lhs, Node rhs)
+        {
+            return new Node(type, 0, null, lhs, rhs);
+        }
+
+        /**
+         * Every distinct node of the dag once, children before their parents.
+         */
+        static ArrayList<Node> postorder(Node root)
+        {
+            ArrayList<Node> order = new ArrayList<>();
+            Set<Node> visited = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+            Set<Node> expanded = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+            ArrayDeque<Node> pending = new ArrayDeque<>();
+            pending.push(root);
+            while (!pending.isEmpty())
+            {
+                Node node = pending.peek();
+                if (visited.contains(node))
+                {
+                    pending.pop();
+                }
+                else if (node.left == null || !expanded.add(node))
+                {
+                    pending.pop();
+                    visited.add(node);
+                    order.add(node);
+                }
+                else
+                {
+                    pending.push(node.right);
+                    pending.push(node.left);
+                }
+            }
+            return order;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+            {
+                return true;
+            }
+            if (!(o instanceof Node))
+            {
+                return false;
+            }
+            Node other = (Node) o;
+            return hash == other.hash
+                    && type == other.type
+                    && Double.doubleToLongBits(value) == Double.doubleToLongBits(other.value)
+                    && (name == null ? other.name == null : name.equals(other.name))
+                    && left == other.left
+                    && right == other.right;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        //the pending stack holds nodes still to print and the characters around them
+        void print(StringBuilder builder)
+        {
+            ArrayDeque<Object> pending = new ArrayDeque<>();
+            pending.push(this);
+            while (!pending.isEmpty())
+            {
+                Object item = pending.pop();
+                if (item instanceof Character)
+                {
+                    builder.append((char) (Character) item);
+                    continue;
+                }
+
+                Node node = (Node) item;
+                switch (node.type)
+                {
+                    case Number:
+                        builder.append(node.value);
+                        break;
+                    case Variable:
+                        builder.append(node.name);
+                        break;
+                    default:
+                        pending.push(')');
+                        pending.push(node.right);
+                        pending.push(symbol(node.type));
+                        pending.push(node.left);
+                        pending.push('(');
+                }
+            }
+        }
+
+        private static char symbol(Token.TokenType type)
+        {
+            switch (type)
+            {
+                case Plus:
+                    return '+';
+                case Minus:
+                    return '-';
+                case Product:
+                    return '*';
+                case Division:
+                    return '/';
+            }
+
+            throw new RuntimeException("Uncovered token type found");
+        }
+    }
+
+    private final Node root;
+    private final String[] names;
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final Set<String> variables;
+    private final Program program;
+    private final Backend backend;
+    private final DoubleArrayFunction function;
+
+    CompiledExpression(Node root, String[] names, Backend backend)
+    {
+        this(root, names, null, backend);
+    }
+
+    CompiledExpression(Node root, String[] names, Program program, Backend backend)
+    {
+        this.root = root;
+        this.names = names;
+        for (int i = 0; i < names.length; i++)
+        {
+            slots.put(names[i], i);
+        }
+        this.program = program != null ? program : Program.compile(root, slots);
+        variables = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(names)));
+
+        DoubleArrayFunction generated = null;
+        if (backend == Backend.Bytecode)
+        {
+            generated = BytecodeCompiler.compile(this.program);
+        }
+        if (generated == null)
+        {
+            this.backend = Backend.Interpreter;
+            function = this.program;
+        }
+        else
+        {
+            this.backend = Backend.Bytecode;
+            function = generated;
+        }
+    }
+
+    /**
+     * The backend actually used, which is the interpreter if bytecode generation wasn't possible.
+     */
+    public Backend backend()
+    {
+        return backend;
+    }
+
+    public CompiledExpression withBackend(Backend backend)
+    {
+        if (backend == this.backend)
+        {
+            return this;
+        }
+        return new CompiledExpression(root, names, program, backend);
+    }
+
+    /**
+     * Variable names in slot order.
+     */
+    public Set<String> variables()
+    {
+        return variables;
+    }
+
+    public int slotCount()
+    {
+        return names.length;
+    }
+
+    /**
+     * Returns the slot of the variable, or -1 if the expression doesn't use it.
+     */
+    public int slot(String name)
+    {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    public String variable(int slot)
+    {
+        return names[slot];
+    }
+
+    public boolean isComputable()
+    {
+        return names.length == 0;
+    }
+
+    /**
+     * Returns a smaller expression with the given variables replaced by constants and folded away.
+     * The remaining variables keep their relative slot order.
+     */
+    public CompiledExpression specialize(Map<String, Double> values)
+    {
+        ExpressionBuilder builder = new ExpressionBuilder();
+        Map<Node, Node> rebuilt = new IdentityHashMap<>();
+        for (Node node: Node.postorder(root))
+        {
+            Node replacement;
+            switch (node.type)
+            {
+                case Number:
+                    replacement = builder.number(node.value);
+                    break;
+                case Variable:
+                    Double value = values.get(node.name);
+                    replacement = value != null ? builder.number(value) : builder.variable(node.name);
+                    break;
+                default:
+                    replacement = builder.operation(node.type, rebuilt.get(node.left), rebuilt.get(node.right));
+            }
+            rebuilt.put(node, replacement);
+        }
+
+        ArrayList<String> remaining = new ArrayList<>();
+        for (String name: names)
+        {
+            if (values.get(name) == null)
+            {
+                remaining.add(name);
+            }
+        }
+        return new CompiledExpression(rebuilt.get(root), remaining.toArray(new String[0]), backend);
+    }
+
+    /**
+     * Number of bytes {@link #writeTo(ByteBuffer)} writes.
+     */
+    public int serializedSize()
+    {
+        return ExpressionFormat.size(names, program);
+    }
+
+    /**
+     * Writes the compiled program at the buffer's position, advancing it. Any number of
+     * expressions can be written one after another and read back in the same order.
+     */
+    public void writeTo(ByteBuffer buffer)
+    {
+        ExpressionFormat.write(names, program, buffer);
+    }
+
+    /**
+     * Reads an expression written by {@link #writeTo(ByteBuffer)} at the buffer's position,
+     * advancing it. Nothing is lexed or parsed, so loading a memory-mapped file of expressions
+     * is mostly I/O. The expression uses the interpreter, see {@link #withBackend(Backend)}.
+     */
+    public static CompiledExpression readFrom(ByteBuffer buffer)
+    {
+        return ExpressionFormat.read(buffer);
+    }
+
+    public Bindings bindings()
+    {
+        return new Bindings(this);
+    }
+
+    /**
+     * Evaluator that recomputes only the part of the expression affected by a changed variable.
+     */
+    public IncrementalEvaluator incremental()
+    {
+        return new IncrementalEvaluator(this, root);
+    }
+
+    public double evaluate()
+    {
+        return evaluate(new double[0]);
+    }
+
+    /**
+     * Evaluates with variable values given by slot, values[slot(name)] holds the value of name.
+     */
+    public double evaluate(double... values)
+    {
+        return evaluate(values, null);
+    }
+
+    //a caller-owned operand stack saves the interpreter an allocation, null lets it allocate one
+    double evaluate(double[] values, double[] stack)
+    {
+        MetricsListener listener = Metrics.listener();
+        long start = Metrics.start(listener);
+        try {
+            double result = run(values, stack);
+            Metrics.evaluated(listener, start);
+            return result;
+        }
+        catch (RuntimeException e)
+        {
+            Metrics.failed(listener, Metrics.Stage.Evaluate, e);
+            throw e;
+        }
+    }
+
+    private double run(double[] values, double[] stack)
+    {
+        if (values.length < names.length)
+        {
+            throw new SyntaxErrorException("Cannot evaluate, expected " + names.length
+                    + " variable values but got " + values.length);
+        }
+        if (stack != null && backend == Backend.Interpreter)
+        {
+            return program.run(values, stack);
+        }
+        return function.applyAsDouble(values);
+    }
+
+    int frameSize()
+    {
+        return program.frameSize();
+    }
+
+    /**
+     * Evaluates every row of the columns into out, columns[slot][row] holding the value
+     * of the slot's variable in that row. The number of rows is out.length.
+     */
+    public void evaluateBatch(double[][] columns, double[] out)
+    {
+        evaluateBatch(columns, out, 0, out.length);
+    }
+
+    public void evaluateBatch(Map<String, double[]> columns, double[] out)
+    {
+        evaluateBatch(columns(columns), out);
+    }
+
+    /**
+     * Evaluates rows [from, to) of the columns into the same rows of out.
+     */
+    public void evaluateBatch(double[][] columns, double[] out, int from, int to)
+    {
+        checkColumns(columns, out, from, to);
+        program.runBatch(columns, out, from, to);
+    }
+
+    /**
+     * Same as {@link #evaluateBatch(double[][], double[])}, with the rows split across
+     * the common fork/join pool.
+     */
+    public void evaluateParallel(double[][] columns, double[] out)
+    {
+        evaluateParallel(columns, out, DEFAULT_SPLIT_THRESHOLD, null);
+    }
+
+    public void evaluateParallel(Map<String, double[]> columns, double[] out)
+    {
+        evaluateParallel(columns(columns), out);
+    }
+
+    public void evaluateParallel(Map<String, double[]> columns, double[] out, int threshold, ForkJoinPool pool)
+    {
+        evaluateParallel(columns(columns), out, threshold, pool);
+    }
+
+    /**
+     * Splits the rows in halves until a part has at most threshold rows and evaluates
+     * the parts in the given pool, or in the common pool if it's null.
+     */
+    public void evaluateParallel(double[][] columns, double[] out, int threshold, ForkJoinPool pool)
+    {
+        if (threshold <= 0)
+        {
+            throw new IllegalArgumentException("split threshold should be positive");
+        }
+        checkColumns(columns, out, 0, out.length);
+
+        BatchTask task = new BatchTask(program, columns, out, 0, out.length, threshold);
+        (pool == null ? ForkJoinPool.commonPool() : pool).invoke(task);
+    }
+
+    private static final class BatchTask extends RecursiveAction
+    {
+        private final Program program;
+        private final double[][] columns;
+        private final double[] out;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        BatchTask(Program program, double[][] columns, double[] out, int from, int to, int threshold)
+        {
+            this.program = program;
+            this.columns = columns;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= threshold)
+            {
+                program.runBatch(columns, out, from, to);
+                return;
+            }
+
+            //split on a chunk boundary when there is one, so the parts run whole chunks
+            int middle = from + (to - from) / 2;
+            int aligned = middle - middle % Program.CHUNK;
+            if (aligned > from)
+            {
+                middle = aligned;
+            }
+            invokeAll(new BatchTask(program, columns, out, from, middle, threshold),
+                    new BatchTask(program, columns, out, middle, to, threshold));
+        }
+    }
+
+    double[][] columns(Map<String, double[]> columns)
+    {
+        double[][] bySlot = new double[names.length][];
+        for (int i = 0; i < names.length; i++)
+        {
+            bySlot[i] = bound(columns, i);
+        }
+        return bySlot;
+    }
+
+    void checkColumns(double[][] columns, double[] out, int from, int to)
+    {
+        if (from < 0 || from > to || to > out.length)
+        {
+            throw new IndexOutOfBoundsException("rows [" + from + ", " + to + ") out of " + out.length);
+        }
+        if (columns.length < names.length)
+        {
+            throw new SyntaxErrorException("Cannot evaluate, expected " + names.length
+                    + " variable columns but got " + columns.length);
+        }
+        for (int i = 0; i < names.length; i++)
+        {
+            if (columns[i].length < to)
+            {
+                throw new IllegalArgumentException("column of variable " + names[i] + " has only "
+                        + columns[i].length + " rows");
+            }
+        }
+    }
+
+    public double evaluate(Map<String, Double> values)
+    {
+        MetricsListener listener = Metrics.listener();
+        long start = Metrics.start(listener);
+        try {
+            double result = run(values);
+            Metrics.evaluated(listener, start);
+            return result;
+        }
+        catch (RuntimeException e)
+        {
+            Metrics.failed(listener, Metrics.Stage.Evaluate, e);
+            throw e;
+        }
+    }
+
+    private double run(Map<String, Double> values)
+    {
+        return function.applyAsDouble(slotValues(values));
+    }
+
+    //values ordered by slot, as evaluate(double...) takes them
+    double[] slotValues(Map<String, Double> values)
+    {
+        double[] bySlot = new double[names.length];
+        for (int i = 0; i < names.length; i++)
+        {
+            bySlot[i] = bound(values, i);
+        }
+        return bySlot;
+    }
+
+    private <T> T bound(Map<String, T> values, int slot)
+    {
+        T value = values.get(names[slot]);
+        if (value == null)
+        {
+            throw new SyntaxErrorException("Cannot evaluate, variable " + names[slot] + " is not bound");
+        }
+        return value;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        root.print(builder);
+        return builder.toString();
+    }
+}
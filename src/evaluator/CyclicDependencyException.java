@@ -0,0 +1,8 @@
+package evaluator;
+
+public class CyclicDependencyException extends IllegalArgumentException {
+    public CyclicDependencyException(String message)
+    {
+        super(message);
+    }
+}
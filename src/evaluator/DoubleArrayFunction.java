@@ -0,0 +1,9 @@
+package evaluator;
+
+/**
+ * Expression body over variable values indexed by slot.
+ * Implemented by the interpreter and by classes generated by the bytecode backend.
+ */
+public interface DoubleArrayFunction {
+    double applyAsDouble(double[] values);
+}
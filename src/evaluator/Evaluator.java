@@ -1,11 +1,96 @@
 package evaluator;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 public class Evaluator {
+    //sources compiled by one task of compileAll
+    private static final int COMPILE_BATCH = 32;
+
     public static double evaluate(String expression)
     {
         Lexer lexer = new Lexer(expression);
         SyntaxTree tree = new SyntaxTree(lexer.tokenQueue());
         return tree.evaluate();
     }
+
+    public static double evaluate(String expression, ExpressionCache cache)
+    {
+        return cache.compile(expression).evaluate();
+    }
+
+    /**
+     * Compiles without throwing, a source that fails to lex or parse gets a failed result
+     * carrying the kind and offset of the error.
+     */
+    public static CompilationResult tryCompile(String expression)
+    {
+        return tryCompile(expression, ParseLimits.NONE);
+    }
+
+    /**
+     * Same as {@link #tryCompile(String)}, failing expressions that cross the limits.
+     */
+    public static CompilationResult tryCompile(String expression, ParseLimits limits)
+    {
+        return CompilationResult.compile(expression, limits);
+    }
+
+    public static List<CompilationResult> compileAll(Collection<String> sources)
+    {
+        return compileAll(sources, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Compiles the sources in parallel on the executor, which can be any pool, including one
+     * starting a thread per task. Results are in the order of the sources; a source that fails
+     * to lex or parse gets a failed result instead of failing the batch.
+     */
+    public static List<CompilationResult> compileAll(Collection<String> sources, Executor executor)
+    {
+        return compileAll(sources, executor, ParseLimits.NONE);
+    }
+
+    public static List<CompilationResult> compileAll(Collection<String> sources, Executor executor,
+                                                     final ParseLimits limits)
+    {
+        final String[] items = sources.toArray(new String[0]);
+        final CompilationResult[] results = new CompilationResult[items.length];
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (int from = 0; from < items.length; from += COMPILE_BATCH)
+        {
+            final int start = from;
+            final int end = Math.min(from + COMPILE_BATCH, items.length);
+            tasks.add(CompletableFuture.runAsync(() -> {
+                for (int i = start; i < end; i++)
+                {
+                    results[i] = CompilationResult.compile(items[i], limits);
+                }
+            }, executor));
+        }
+
+        try {
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+        }
+        catch (CompletionException e)
+        {
+            //anything other than a bad source is a bug, rethrown as it is
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error)
+            {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+        return Arrays.asList(results);
+    }
 }
@@ -0,0 +1,110 @@
+package evaluator;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates compiled nodes, simplifying them on the way. Operations on constants are folded,
+ * operations with a neutral operand are dropped, and structurally equal nodes are shared,
+ * which turns repeated subexpressions into one node that the {@link Program} computes once.
+ */
+final class ExpressionBuilder {
+    private final Map<CompiledExpression.Node, CompiledExpression.Node> nodes = new HashMap<>();
+
+    CompiledExpression.Node number(double value)
+    {
+        return intern(CompiledExpression.Node.number(value));
+    }
+
+    CompiledExpression.Node variable(String name)
+    {
+        return intern(CompiledExpression.Node.variable(name));
+    }
+
+    CompiledExpression.Node operation(Token.TokenType type, CompiledExpression.Node lhs, CompiledExpression.Node rhs)
+    {
+        if (lhs.type == Token.TokenType.Number && rhs.type == Token.TokenType.Number)
+        {
+            return number(fold(type, lhs.value, rhs.value));
+        }
+
+        //only exact rules: x + 0.0 is 0.0 for x = -0.0, but x + -0.0 and x - 0.0 are always x
+        switch (type)
+        {
+            case Plus:
+                if (isConstant(rhs, -0.))
+                {
+                    return lhs;
+                }
+                if (isConstant(lhs, -0.))
+                {
+                    return rhs;
+                }
+                break;
+            case Minus:
+                if (isConstant(rhs, 0.))
+                {
+                    return lhs;
+                }
+                break;
+            case Product:
+                if (isConstant(rhs, 1.))
+                {
+                    return lhs;
+                }
+                if (isConstant(lhs, 1.))
+                {
+                    return rhs;
+                }
+                break;
+            case Division:
+                if (isConstant(rhs, 1.))
+                {
+                    return lhs;
+                }
+                break;
+        }
+
+        return intern(CompiledExpression.Node.operation(type, lhs, rhs));
+    }
+
+    static double fold(Token.TokenType type, double lhs, double rhs)
+    {
+        switch (type)
+        {
+            case Plus:
+                return lhs + rhs;
+            case Minus:
+                return lhs - rhs;
+            case Product:
+                return lhs * rhs;
+            case Division:
+                return lhs / rhs;
+        }
+
+        throw new RuntimeException("Uncovered token type found");
+    }
+
+    int size()
+    {
+        return nodes.size();
+    }
+
+    private static boolean isConstant(CompiledExpression.Node node, double value)
+    {
+        //compares bits, so 0.0 and -0.0 are different constants
+        return node.type == Token.TokenType.Number
+                && Double.doubleToRawLongBits(node.value) == Double.doubleToRawLongBits(value);
+    }
+
+    private CompiledExpression.Node intern(CompiledExpression.Node node)
+    {
+        CompiledExpression.Node existing = nodes.get(node);
+        if (existing != null)
+        {
+            return existing;
+        }
+        nodes.put(node, node);
+        return node;
+    }
+}
@@ -0,0 +1,84 @@
+package evaluator;
+
+/**
+ * Bounded, thread-safe cache of compiled expressions keyed by their source text.
+ * The least recently used entry is evicted once the capacity is exceeded.
+ * Sources that fail to lex or parse are not cached.
+ */
+public class ExpressionCache {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final LruCache<String, CompiledExpression> expressions;
+    private final ExpressionInterner interner;
+
+    public ExpressionCache()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ExpressionCache(int capacity)
+    {
+        this(capacity, null);
+    }
+
+    /**
+     * Cache compiling through the interner, so cached expressions share their common subexpressions.
+     */
+    public ExpressionCache(int capacity, ExpressionInterner interner)
+    {
+        expressions = new LruCache<>(capacity);
+        this.interner = interner;
+    }
+
+    public CompiledExpression compile(String expression)
+    {
+        CompiledExpression compiled = expressions.get(expression);
+        if (compiled != null)
+        {
+            return compiled;
+        }
+
+        //parse outside of the lock, so a slow formula doesn't block the others
+        Lexer lexer = new Lexer(expression);
+        SyntaxTree tree = new SyntaxTree(lexer.tokenQueue());
+        compiled = interner == null ? tree.compile() : interner.compile(tree);
+        return expressions.putIfAbsent(expression, compiled);
+    }
+
+    public void clear()
+    {
+        expressions.clear();
+    }
+
+    public int size()
+    {
+        return expressions.size();
+    }
+
+    public int capacity()
+    {
+        return expressions.capacity();
+    }
+
+    public long hits()
+    {
+        return expressions.hits();
+    }
+
+    public long misses()
+    {
+        return expressions.misses();
+    }
+
+    public long evictions()
+    {
+        return expressions.evictions();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ExpressionCache{size=" + size() + ", capacity=" + capacity()
+                + ", hits=" + hits() + ", misses=" + misses() + ", evictions=" + evictions() + "}";
+    }
+}
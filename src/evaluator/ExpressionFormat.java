@@ -0,0 +1,202 @@
+package evaluator;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary form of a {@link CompiledExpression}, the program as it is run rather than the source text:
+ * <pre>
+ * int magic, short version,
+ * short name count, per name: short length and ASCII bytes, in slot order,
+ * int max stack, int temporaries,
+ * int constant count, raw doubles,
+ * int instruction count, instructions
+ * </pre>
+ * Values use the byte order of the buffer, big-endian by default. Reading copies the arrays out of the buffer in bulk and rebuilds
+ * the expression nodes from the postfix code, without lexing or parsing.
+ */
+final class ExpressionFormat {
+    static final int MAGIC = 0x4A41524B;
+    static final short VERSION = 1;
+
+    static int size(String[] names, Program program)
+    {
+        int size = 4 + 2 + 2;
+        for (String name: names)
+        {
+            size += 2 + name.length();
+        }
+        return size + 4 + 4 + 4 + 8 * program.constants.length + 4 + 4 * program.code.length;
+    }
+
+    static void write(String[] names, Program program, ByteBuffer buffer)
+    {
+        if (names.length > 0xffff)
+        {
+            throw new IllegalArgumentException("too many variables to serialize: " + names.length);
+        }
+
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) names.length);
+        for (String name: names)
+        {
+            byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+            if (bytes.length > 0xffff)
+            {
+                throw new IllegalArgumentException("variable name too long to serialize: " + name);
+            }
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+        }
+        buffer.putInt(program.maxStack);
+        buffer.putInt(program.temps);
+        buffer.putInt(program.constants.length);
+        buffer.asDoubleBuffer().put(program.constants);
+        buffer.position(buffer.position() + 8 * program.constants.length);
+        buffer.putInt(program.code.length);
+        buffer.asIntBuffer().put(program.code);
+        buffer.position(buffer.position() + 4 * program.code.length);
+    }
+
+    static CompiledExpression read(ByteBuffer buffer)
+    {
+        try {
+            return readChecked(buffer);
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new IllegalArgumentException("truncated serialized expression");
+        }
+    }
+
+    //every size is checked against the rest of the buffer before anything is allocated from it
+    private static CompiledExpression readChecked(ByteBuffer buffer)
+    {
+        if (buffer.getInt() != MAGIC)
+        {
+            throw new IllegalArgumentException("not a serialized expression");
+        }
+        short version = buffer.getShort();
+        if (version != VERSION)
+        {
+            throw new IllegalArgumentException("unsupported serialized expression version " + version);
+        }
+
+        int nameCount = buffer.getShort() & 0xffff;
+        if (nameCount > buffer.remaining() / 2)
+        {
+            throw new IllegalArgumentException("truncated serialized expression");
+        }
+        String[] names = new String[nameCount];
+        for (int i = 0; i < names.length; i++)
+        {
+            int length = buffer.getShort() & 0xffff;
+            if (length > buffer.remaining())
+            {
+                throw new IllegalArgumentException("truncated serialized expression");
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            names[i] = new String(bytes, StandardCharsets.US_ASCII);
+        }
+        int maxStack = buffer.getInt();
+        int temps = buffer.getInt();
+        double[] constants = new double[length(buffer, 8)];
+        buffer.asDoubleBuffer().get(constants);
+        buffer.position(buffer.position() + 8 * constants.length);
+        int[] code = new int[length(buffer, 4)];
+        buffer.asIntBuffer().get(code);
+        buffer.position(buffer.position() + 4 * code.length);
+
+        //every instruction pushes at most one value and tees at most one temporary
+        if (maxStack < 1 || maxStack > code.length || temps < 0 || temps > code.length)
+        {
+            throw new IllegalArgumentException("corrupt serialized expression");
+        }
+        Program program = new Program(code, constants, maxStack, temps);
+        return new CompiledExpression(decode(program, names), names, program, CompiledExpression.Backend.Interpreter);
+    }
+
+    //reads an array length, checking the array fits in what is left of the buffer
+    private static int length(ByteBuffer buffer, int elementSize)
+    {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining() / elementSize)
+        {
+            throw new IllegalArgumentException("corrupt serialized expression");
+        }
+        return length;
+    }
+
+    //runs the program over nodes instead of numbers, temporaries give back the shared subexpressions
+    private static CompiledExpression.Node decode(Program program, String[] names)
+    {
+        CompiledExpression.Node[] stack = new CompiledExpression.Node[program.maxStack];
+        CompiledExpression.Node[] temps = new CompiledExpression.Node[program.temps];
+        //one node per variable, like the builder makes them
+        CompiledExpression.Node[] variables = new CompiledExpression.Node[names.length];
+        int sp = 0;
+        try {
+            for (int instruction: program.code)
+            {
+                int operand = Program.operand(instruction);
+                switch (Program.opcode(instruction))
+                {
+                    case Program.CONST:
+                        stack[sp++] = CompiledExpression.Node.number(program.constants[operand]);
+                        break;
+                    case Program.LOAD:
+                        if (variables[operand] == null)
+                        {
+                            variables[operand] = CompiledExpression.Node.variable(names[operand]);
+                        }
+                        stack[sp++] = variables[operand];
+                        break;
+                    case Program.TEE:
+                        temps[operand] = stack[sp - 1];
+                        break;
+                    case Program.LOAD_TEMP:
+                        if (temps[operand] == null)
+                        {
+                            throw new IllegalArgumentException("corrupt serialized expression");
+                        }
+                        stack[sp++] = temps[operand];
+                        break;
+                    case Program.ADD:
+                        sp = operation(stack, sp, Token.TokenType.Plus);
+                        break;
+                    case Program.SUB:
+                        sp = operation(stack, sp, Token.TokenType.Minus);
+                        break;
+                    case Program.MUL:
+                        sp = operation(stack, sp, Token.TokenType.Product);
+                        break;
+                    case Program.DIV:
+                        sp = operation(stack, sp, Token.TokenType.Division);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("corrupt serialized expression");
+                }
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException e)
+        {
+            throw new IllegalArgumentException("corrupt serialized expression");
+        }
+
+        if (sp != 1)
+        {
+            throw new IllegalArgumentException("corrupt serialized expression");
+        }
+        return stack[0];
+    }
+
+    private static int operation(CompiledExpression.Node[] stack, int sp, Token.TokenType type)
+    {
+        CompiledExpression.Node rhs = stack[--sp];
+        stack[sp - 1] = CompiledExpression.Node.operation(type, stack[sp - 1], rhs);
+        return sp;
+    }
+}
@@ -0,0 +1,28 @@
+package evaluator;
+
+/**
+ * Shares structurally equal subexpressions between all the expressions it compiles, so a catalog
+ * of formulas with common parts holds one node per distinct subexpression. Nodes are kept as long
+ * as the interner is. Thread-safe.
+ */
+public final class ExpressionInterner {
+    private final ExpressionBuilder builder = new ExpressionBuilder();
+
+    public CompiledExpression compile(String expression)
+    {
+        return compile(new SyntaxTree(Lexer.scan(expression)));
+    }
+
+    public synchronized CompiledExpression compile(SyntaxTree tree)
+    {
+        return tree.compile(builder);
+    }
+
+    /**
+     * Number of distinct nodes interned so far.
+     */
+    public synchronized int size()
+    {
+        return builder.size();
+    }
+}
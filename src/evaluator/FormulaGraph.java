@@ -0,0 +1,405 @@
+package evaluator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Named formulas whose variables are inputs or the results of other formulas. Formulas are
+ * evaluated in dependency order, and after an input or a definition changes only the formulas
+ * depending on it are recomputed; a formula whose value stays the same stops the propagation.
+ * All formulas are compiled with one {@link ExpressionInterner}, so equal subexpressions of
+ * different formulas are a single node.
+ * <p>
+ * The level of a formula is the length of the longest chain of formulas it depends on, formulas
+ * of one level are independent of each other and {@link #recompute(ForkJoinPool)} evaluates them
+ * in parallel. Inputs that were never set read as NaN. Not thread-safe.
+ */
+public final class FormulaGraph {
+    //formulas evaluated by one fork/join task
+    private static final int BATCH = 16;
+
+    private static final class Formula
+    {
+        final int cell;
+        final CompiledExpression expression;
+        //cell of every slot of the expression
+        final int[] arguments;
+        final double[] values;
+        int level;
+        boolean dirty;
+        double result;
+
+        Formula(int cell, CompiledExpression expression, int[] arguments)
+        {
+            this.cell = cell;
+            this.expression = expression;
+            this.arguments = arguments;
+            values = new double[arguments.length];
+        }
+
+        void compute(double[] cells)
+        {
+            for (int i = 0; i < arguments.length; i++)
+            {
+                values[i] = cells[arguments[i]];
+            }
+            result = expression.evaluate(values);
+        }
+    }
+
+    private final ExpressionInterner interner;
+    //every name, input or formula, is a cell holding its current value
+    private final Map<String, Integer> cells = new HashMap<>();
+    private final ArrayList<String> names = new ArrayList<>();
+    //by cell, null for inputs
+    private final ArrayList<Formula> formulas = new ArrayList<>();
+    private final ArrayList<ArrayList<Formula>> readers = new ArrayList<>();
+    private double[] values = new double[16];
+    private final ArrayList<Formula> dirty = new ArrayList<>();
+    private int levels;
+    private boolean planned = true;
+
+    public FormulaGraph()
+    {
+        this(new ExpressionInterner());
+    }
+
+    /**
+     * Graph sharing subexpressions with everything else compiled by the interner.
+     */
+    public FormulaGraph(ExpressionInterner interner)
+    {
+        this.interner = interner;
+    }
+
+    public FormulaGraph define(String name, String expression)
+    {
+        return define(name, new SyntaxTree(Lexer.scan(expression)));
+    }
+
+    /**
+     * Defines or replaces the formula computing name.
+     * @throws CyclicDependencyException if the formula would depend on itself
+     */
+    public FormulaGraph define(String name, SyntaxTree tree)
+    {
+        CompiledExpression expression = interner.compile(tree);
+        if (expression.variables().contains(name))
+        {
+            throw new CyclicDependencyException("cyclic dependency: " + name + " -> " + name);
+        }
+        Integer existing = cells.get(name);
+        if (existing != null)
+        {
+            for (String variable: expression.variables())
+            {
+                Integer argument = cells.get(variable);
+                List<String> cycle = argument == null ? null : path(argument, existing);
+                if (cycle != null)
+                {
+                    cycle.add(0, name);
+                    throw new CyclicDependencyException("cyclic dependency: " + String.join(" -> ", cycle));
+                }
+            }
+        }
+
+        int cell = cell(name);
+        int[] arguments = new int[expression.slotCount()];
+        for (int slot = 0; slot < arguments.length; slot++)
+        {
+            arguments[slot] = cell(expression.variable(slot));
+        }
+
+        Formula previous = formulas.get(cell);
+        if (previous != null)
+        {
+            for (int argument: previous.arguments)
+            {
+                readers.get(argument).remove(previous);
+            }
+        }
+        Formula formula = new Formula(cell, expression, arguments);
+        formulas.set(cell, formula);
+        for (int argument: arguments)
+        {
+            readers.get(argument).add(formula);
+        }
+
+        planned = false;
+        formula.dirty = true;
+        dirty.add(formula);
+        return this;
+    }
+
+    public FormulaGraph set(String input, double value)
+    {
+        int cell = cell(input);
+        if (formulas.get(cell) != null)
+        {
+            throw new IllegalArgumentException(input + " is a formula, not an input");
+        }
+        if (Double.doubleToLongBits(values[cell]) != Double.doubleToLongBits(value))
+        {
+            values[cell] = value;
+            for (Formula reader: readers.get(cell))
+            {
+                if (!reader.dirty)
+                {
+                    reader.dirty = true;
+                    dirty.add(reader);
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Value of an input or a formula, recomputing the formulas affected by earlier changes first.
+     */
+    public double get(String name)
+    {
+        Integer cell = cells.get(name);
+        if (cell == null)
+        {
+            throw new IllegalArgumentException("graph has no input or formula " + name);
+        }
+        if (!dirty.isEmpty())
+        {
+            recompute();
+        }
+        return values[cell];
+    }
+
+    /**
+     * Formula names in evaluation order, every formula comes after the formulas it depends on.
+     */
+    public List<String> order()
+    {
+        plan();
+        ArrayList<Formula> sorted = new ArrayList<>();
+        for (Formula formula: formulas)
+        {
+            if (formula != null)
+            {
+                sorted.add(formula);
+            }
+        }
+        sorted.sort(Comparator.comparingInt(formula -> formula.level));
+
+        ArrayList<String> order = new ArrayList<>(sorted.size());
+        for (Formula formula: sorted)
+        {
+            order.add(names.get(formula.cell));
+        }
+        return order;
+    }
+
+    public void recompute()
+    {
+        recompute(null);
+    }
+
+    /**
+     * Recomputes the affected formulas level by level, the formulas of a level in parallel on the pool.
+     */
+    public void recompute(ForkJoinPool pool)
+    {
+        plan();
+        ArrayList<ArrayList<Formula>> byLevel = new ArrayList<>(levels);
+        for (int level = 0; level < levels; level++)
+        {
+            byLevel.add(new ArrayList<>());
+        }
+        for (Formula formula: dirty)
+        {
+            //skips formulas replaced since they were marked
+            if (formulas.get(formula.cell) == formula)
+            {
+                byLevel.get(formula.level).add(formula);
+            }
+        }
+        dirty.clear();
+
+        for (ArrayList<Formula> level: byLevel)
+        {
+            if (pool != null && level.size() > BATCH)
+            {
+                pool.invoke(new LevelTask(level, values, 0, level.size()));
+            }
+            else
+            {
+                for (Formula formula: level)
+                {
+                    formula.compute(values);
+                }
+            }
+
+            //results are published after the whole level is computed, so tasks only read values
+            for (Formula formula: level)
+            {
+                formula.dirty = false;
+                if (Double.doubleToLongBits(values[formula.cell]) == Double.doubleToLongBits(formula.result))
+                {
+                    continue;
+                }
+                values[formula.cell] = formula.result;
+                for (Formula reader: readers.get(formula.cell))
+                {
+                    if (!reader.dirty)
+                    {
+                        reader.dirty = true;
+                        byLevel.get(reader.level).add(reader);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class LevelTask extends RecursiveAction
+    {
+        private final List<Formula> level;
+        private final double[] values;
+        private final int from;
+        private final int to;
+
+        LevelTask(List<Formula> level, double[] values, int from, int to)
+        {
+            this.level = level;
+            this.values = values;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= BATCH)
+            {
+                for (int i = from; i < to; i++)
+                {
+                    level.get(i).compute(values);
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new LevelTask(level, values, from, middle), new LevelTask(level, values, middle, to));
+        }
+    }
+
+    private int cell(String name)
+    {
+        Integer cell = cells.get(name);
+        if (cell != null)
+        {
+            return cell;
+        }
+
+        cell = names.size();
+        cells.put(name, cell);
+        names.add(name);
+        formulas.add(null);
+        readers.add(new ArrayList<>());
+        if (cell == values.length)
+        {
+            values = Arrays.copyOf(values, cell * 2);
+            Arrays.fill(values, cell, values.length, Double.NaN);
+        }
+        values[cell] = Double.NaN;
+        return cell;
+    }
+
+    //names along a chain of formula arguments leading from start to target, null if there is none
+    private List<String> path(int start, int target)
+    {
+        Map<Integer, Integer> reachedFrom = new HashMap<>();
+        ArrayDeque<Integer> pending = new ArrayDeque<>();
+        reachedFrom.put(start, start);
+        pending.push(start);
+        while (!pending.isEmpty())
+        {
+            int cell = pending.pop();
+            if (cell == target)
+            {
+                ArrayList<String> path = new ArrayList<>();
+                for (int current = cell; current != start; current = reachedFrom.get(current))
+                {
+                    path.add(names.get(current));
+                }
+                path.add(names.get(start));
+                Collections.reverse(path);
+                return path;
+            }
+
+            Formula formula = formulas.get(cell);
+            if (formula == null)
+            {
+                continue;
+            }
+            for (int argument: formula.arguments)
+            {
+                if (!reachedFrom.containsKey(argument))
+                {
+                    reachedFrom.put(argument, cell);
+                    pending.push(argument);
+                }
+            }
+        }
+        return null;
+    }
+
+    //levels by Kahn's algorithm, definitions never form a cycle so every formula gets one
+    private void plan()
+    {
+        if (planned)
+        {
+            return;
+        }
+
+        int[] remaining = new int[formulas.size()];
+        ArrayDeque<Formula> ready = new ArrayDeque<>();
+        for (Formula formula: formulas)
+        {
+            if (formula == null)
+            {
+                continue;
+            }
+            formula.level = 0;
+            for (int argument: formula.arguments)
+            {
+                if (formulas.get(argument) != null)
+                {
+                    remaining[formula.cell]++;
+                }
+            }
+            if (remaining[formula.cell] == 0)
+            {
+                ready.add(formula);
+            }
+        }
+
+        levels = 0;
+        while (!ready.isEmpty())
+        {
+            Formula formula = ready.poll();
+            levels = Math.max(levels, formula.level + 1);
+            for (Formula reader: readers.get(formula.cell))
+            {
+                reader.level = Math.max(reader.level, formula.level + 1);
+                if (--remaining[reader.cell] == 0)
+                {
+                    ready.add(reader);
+                }
+            }
+        }
+        planned = true;
+    }
+}
@@ -0,0 +1,158 @@
+package evaluator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the value of every node of a {@link CompiledExpression}, so setting a variable only
+ * recomputes the nodes that depend on it, spreadsheet-style. Nodes are numbered children first,
+ * so recomputing the dependents of a variable in ascending order sees every operand up to date.
+ * The dependents of a slot are collected the first time it is set. Unset variables read as NaN.
+ * Not thread-safe, use one instance per thread.
+ */
+public final class IncrementalEvaluator {
+    private final CompiledExpression expression;
+    private final Token.TokenType[] types;
+    private final int[] left;
+    private final int[] right;
+    private final int[][] parents;
+    private final double[] values;
+    //node of every slot and, once the slot was set, the nodes to recompute in order
+    private final int[] leaves;
+    private final int[][] dependents;
+
+    IncrementalEvaluator(CompiledExpression expression, CompiledExpression.Node root)
+    {
+        this.expression = expression;
+        List<CompiledExpression.Node> order = CompiledExpression.Node.postorder(root);
+        int size = order.size();
+        types = new Token.TokenType[size];
+        left = new int[size];
+        right = new int[size];
+        values = new double[size];
+        leaves = new int[expression.slotCount()];
+        dependents = new int[expression.slotCount()][];
+        Arrays.fill(leaves, -1);
+
+        Map<CompiledExpression.Node, Integer> index = new IdentityHashMap<>();
+        int[] parentCounts = new int[size];
+        for (int i = 0; i < size; i++)
+        {
+            CompiledExpression.Node node = order.get(i);
+            index.put(node, i);
+            types[i] = node.type;
+            switch (node.type)
+            {
+                case Number:
+                    values[i] = node.value;
+                    break;
+                case Variable:
+                    values[i] = Double.NaN;
+                    leaves[expression.slot(node.name)] = i;
+                    break;
+                default:
+                    left[i] = index.get(node.left);
+                    right[i] = index.get(node.right);
+                    parentCounts[left[i]]++;
+                    //x * x has one parent, listed once
+                    if (right[i] != left[i])
+                    {
+                        parentCounts[right[i]]++;
+                    }
+                    values[i] = ExpressionBuilder.fold(node.type, values[left[i]], values[right[i]]);
+            }
+        }
+
+        parents = new int[size][];
+        for (int i = 0; i < size; i++)
+        {
+            parents[i] = new int[parentCounts[i]];
+            parentCounts[i] = 0;
+        }
+        for (int i = 0; i < size; i++)
+        {
+            if (types[i] != Token.TokenType.Number && types[i] != Token.TokenType.Variable)
+            {
+                parents[left[i]][parentCounts[left[i]]++] = i;
+                if (right[i] != left[i])
+                {
+                    parents[right[i]][parentCounts[right[i]]++] = i;
+                }
+            }
+        }
+    }
+
+    public IncrementalEvaluator set(int slot, double value)
+    {
+        int leaf = leaves[slot];
+        if (leaf < 0 || Double.doubleToLongBits(values[leaf]) == Double.doubleToLongBits(value))
+        {
+            return this;
+        }
+
+        values[leaf] = value;
+        for (int node: dependents(slot))
+        {
+            values[node] = ExpressionBuilder.fold(types[node], values[left[node]], values[right[node]]);
+        }
+        return this;
+    }
+
+    public IncrementalEvaluator set(String name, double value)
+    {
+        int slot = expression.slot(name);
+        if (slot < 0)
+        {
+            throw new IllegalArgumentException("expression has no variable " + name);
+        }
+        return set(slot, value);
+    }
+
+    public double get(int slot)
+    {
+        return leaves[slot] < 0 ? Double.NaN : values[leaves[slot]];
+    }
+
+    public double evaluate()
+    {
+        return values[values.length - 1];
+    }
+
+    private int[] dependents(int slot)
+    {
+        if (dependents[slot] != null)
+        {
+            return dependents[slot];
+        }
+
+        boolean[] seen = new boolean[values.length];
+        ArrayList<Integer> found = new ArrayList<>();
+        ArrayDeque<Integer> pending = new ArrayDeque<>();
+        pending.push(leaves[slot]);
+        while (!pending.isEmpty())
+        {
+            for (int parent: parents[pending.pop()])
+            {
+                if (!seen[parent])
+                {
+                    seen[parent] = true;
+                    found.add(parent);
+                    pending.push(parent);
+                }
+            }
+        }
+
+        int[] sorted = new int[found.size()];
+        for (int i = 0; i < sorted.length; i++)
+        {
+            sorted[i] = found.get(i);
+        }
+        Arrays.sort(sorted);
+        dependents[slot] = sorted;
+        return sorted;
+    }
+}
@@ -6,6 +6,15 @@ import java.util.Queue;
 import java.util.regex.Pattern;
 
 public class Lexer {
+    private static final Pattern numberPattern = Pattern.compile("\\d*(\\.\\d+)*");
+    private static final Pattern variableNamePattern = Pattern.compile("([a-z]|[A-Z])+");
+    //exactly representable, so dividing an exact mantissa by them rounds correctly
+    private static final double[] powersOfTen = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final int maxExactDigits = 15;
+
     private ArrayList<Token> tokens = new ArrayList<>();
 
     private enum CharType {
@@ -60,8 +69,6 @@ public class Lexer {
     }
 
     private void flushNumber(StringBuilder numberBuffer) {
-        final Pattern numberPattern = Pattern.compile("\\d*(\\.\\d+)*");
-
         String num = numberBuffer.toString();
         if (!num.isEmpty()) {
             if (!numberPattern.matcher(num).matches()) {
@@ -73,8 +80,6 @@ public class Lexer {
     }
 
     private void flushVariable(StringBuilder variable) {
-        final Pattern variableNamePattern = Pattern.compile("([a-z]|[A-Z])+");
-
         String variableName = variable.toString();
         if (!variableNamePattern.matcher(variableName).matches())
         {
@@ -99,6 +104,21 @@ public class Lexer {
     }
 
     public Lexer(String expression)
+    {
+        MetricsListener listener = Metrics.listener();
+        long start = Metrics.start(listener);
+        try {
+            lex(expression);
+        }
+        catch (RuntimeException e)
+        {
+            Metrics.failed(listener, Metrics.Stage.Lex, e);
+            throw e;
+        }
+        Metrics.lexed(listener, tokens.size(), start);
+    }
+
+    private void lex(String expression)
     {
 //        String[] terms = expression.split("\\s+");
 //        for (String term: terms)
@@ -140,32 +160,32 @@ public class Lexer {
                 case Plus:
                     flushCurrentLeaf(number, variable, currentType);
                     currentType = PartialTokenType.None;
-                    tokens.add(new Token("+", Token.TokenType.Plus));
+                    tokens.add(Token.PLUS);
                     break;
                 case Minus:
                     flushCurrentLeaf(number, variable, currentType);
                     currentType = PartialTokenType.None;
-                    tokens.add(new Token("-", Token.TokenType.Minus));
+                    tokens.add(Token.MINUS);
                     break;
                 case Product:
                     flushCurrentLeaf(number, variable, currentType);
                     currentType = PartialTokenType.None;
-                    tokens.add(new Token("*", Token.TokenType.Product));
+                    tokens.add(Token.PRODUCT);
                     break;
                 case Division:
                     flushCurrentLeaf(number, variable, currentType);
                     currentType = PartialTokenType.None;
-                    tokens.add(new Token("/", Token.TokenType.Division));
+                    tokens.add(Token.DIVISION);
                     break;
                 case OpeningBracket:
                     flushCurrentLeaf(number, variable, currentType);
                     currentType = PartialTokenType.None;
-                    tokens.add(new Token("(", Token.TokenType.OpeningBracket));
+                    tokens.add(Token.OPENING_BRACKET);
                     break;
                 case ClosingBracket:
                     flushCurrentLeaf(number, variable, currentType);
                     currentType = PartialTokenType.None;
-                    tokens.add(new Token(")", Token.TokenType.ClosingBracket));
+                    tokens.add(Token.CLOSING_BRACKET);
                     break;
                 case Alphabetic:
                     if (!number.toString().isEmpty()) {
@@ -194,6 +214,209 @@ public class Lexer {
         }
     }
 
+    /**
+     * Scans the expression in one pass into a compact {@link TokenStream}, without regular
+     * expressions or per-token objects. Numbers are parsed while scanning.
+     */
+    public static TokenStream scan(CharSequence expression)
+    {
+        TokenStream tokens = new TokenStream();
+        scan(expression, tokens);
+        return tokens;
+    }
+
+    /**
+     * Scans at most limits.maxTokens() tokens of at most limits.maxTokenLength() characters each,
+     * longer input is rejected without reading the rest of it.
+     */
+    public static TokenStream scan(CharSequence expression, ParseLimits limits)
+    {
+        TokenStream tokens = new TokenStream();
+        scan(expression, tokens, true, limits);
+        return tokens;
+    }
+
+    /**
+     * Same as {@link #scan(CharSequence)}, but refills the given stream, which allocates
+     * nothing once its arrays are large enough.
+     */
+    public static void scan(CharSequence expression, TokenStream tokens)
+    {
+        scan(expression, tokens, true, ParseLimits.NONE);
+    }
+
+    //stackTraces false leaves them out of the lexical errors, for callers that catch them right away
+    static void scan(CharSequence expression, TokenStream tokens, boolean stackTraces, ParseLimits limits)
+    {
+        MetricsListener listener = Metrics.listener();
+        long start = Metrics.start(listener);
+        try {
+            scanInto(expression, tokens, stackTraces, limits);
+        }
+        catch (RuntimeException e)
+        {
+            Metrics.failed(listener, Metrics.Stage.Lex, e);
+            throw e;
+        }
+        Metrics.lexed(listener, tokens.size(), start);
+    }
+
+    private static void scanInto(CharSequence expression, TokenStream tokens, boolean stackTraces, ParseLimits limits)
+    {
+        int maxTokens = limits.maxTokens();
+        int maxTokenLength = limits.maxTokenLength();
+        tokens.reset(expression);
+        int length = expression.length();
+        int i = 0;
+        while (i < length)
+        {
+            char c = expression.charAt(i);
+            //anything but a space starts a token
+            if (c != ' ' && tokens.size() == maxTokens)
+            {
+                throw new LexicalErrorException("expression has more than " + maxTokens + " tokens", i, stackTraces);
+            }
+            switch (c)
+            {
+                case ' ':
+                    i++;
+                    break;
+                case '+':
+                    tokens.add(Token.TokenType.Plus, i++, 1, 0);
+                    break;
+                case '-':
+                    tokens.add(Token.TokenType.Minus, i++, 1, 0);
+                    break;
+                case '*':
+                    tokens.add(Token.TokenType.Product, i++, 1, 0);
+                    break;
+                case '/':
+                    tokens.add(Token.TokenType.Division, i++, 1, 0);
+                    break;
+                case '(':
+                    tokens.add(Token.TokenType.OpeningBracket, i++, 1, 0);
+                    break;
+                case ')':
+                    tokens.add(Token.TokenType.ClosingBracket, i++, 1, 0);
+                    break;
+                case '_':
+                    throw new LexicalErrorException("wrong variable name format", i, stackTraces);
+                default:
+                    if ((c >= '0' && c <= '9') || c == '.')
+                    {
+                        i = scanNumber(expression, i, tokens, stackTraces, maxTokenLength);
+                    }
+                    else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))
+                    {
+                        i = scanVariable(expression, i, tokens, stackTraces, maxTokenLength);
+                    }
+                    else
+                    {
+                        throw new LexicalErrorException("could not determine the char type", i, stackTraces);
+                    }
+            }
+        }
+    }
+
+    private static int scanNumber(CharSequence expression, int start, TokenStream tokens, boolean stackTraces,
+                                  int maxLength)
+    {
+        int length = expression.length();
+        int i = start;
+        while (i < length && (expression.charAt(i) == '.' || (expression.charAt(i) >= '0' && expression.charAt(i) <= '9')))
+        {
+            if (i - start == maxLength)
+            {
+                throw tooLong(maxLength, start, stackTraces);
+            }
+            i++;
+        }
+
+        tokens.add(Token.TokenType.Number, start, i - start, parseNumber(expression, start, i, start, stackTraces));
+        return i;
+    }
+
+    //parses digits and dots in [start, end), rejecting what the number pattern rejects.
+    //offset is the source offset reported for errors
+    static double parseNumber(CharSequence text, int start, int end, int offset, boolean stackTraces)
+    {
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean dot = false;
+
+        for (int i = start; i < end; i++)
+        {
+            char c = text.charAt(i);
+            if (c == '.')
+            {
+                if (dot)
+                {
+                    throw new LexicalErrorException("double dots are not allowed", offset, stackTraces);
+                }
+                dot = true;
+                continue;
+            }
+
+            if (digits < maxExactDigits)
+            {
+                mantissa = mantissa * 10 + (c - '0');
+            }
+            digits++;
+            if (dot)
+            {
+                fractionDigits++;
+            }
+        }
+
+        if (digits == 0 || (dot && fractionDigits == 0))
+        {
+            throw new LexicalErrorException("wrong number input, it should abide pattern [0-9]*.[0-9]+",
+                    offset, stackTraces);
+        }
+
+        if (digits <= maxExactDigits)
+        {
+            return mantissa / powersOfTen[fractionDigits];
+        }
+        //too many digits for the exact fast path, rare enough to afford the string
+        return Double.parseDouble(text.subSequence(start, end).toString());
+    }
+
+    private static int scanVariable(CharSequence expression, int start, TokenStream tokens, boolean stackTraces,
+                                    int maxLength)
+    {
+        int length = expression.length();
+        int i = start;
+        while (i < length)
+        {
+            char c = expression.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))
+            {
+                if (i - start == maxLength)
+                {
+                    throw tooLong(maxLength, start, stackTraces);
+                }
+                i++;
+            }
+            else if (c == '_')
+            {
+                throw new LexicalErrorException("wrong variable name format", i, stackTraces);
+            }
+            else
+            {
+                break;
+            }
+        }
+        tokens.add(Token.TokenType.Variable, start, i - start, 0);
+        return i;
+    }
+
+    static LexicalErrorException tooLong(int maxLength, int offset, boolean stackTraces)
+    {
+        return new LexicalErrorException("token is longer than " + maxLength + " characters", offset, stackTraces);
+    }
+
     public Queue<Token> tokenQueue()
     {
         return new ArrayDeque<>(tokens);
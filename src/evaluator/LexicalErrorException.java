@@ -1,8 +1,21 @@
 package evaluator;
 
-public class LexicalErrorException extends IllegalArgumentException {
+public class LexicalErrorException extends SourceErrorException {
     public LexicalErrorException(String message)
     {
-        super(message);
+        this(message, -1, true);
+    }
+
+    public LexicalErrorException(String message, int offset)
+    {
+        this(message, offset, true);
+    }
+
+    /**
+     * Without a stack trace the exception is far cheaper to create, for errors that are caught right away.
+     */
+    public LexicalErrorException(String message, int offset, boolean stackTrace)
+    {
+        super(message, offset, stackTrace);
     }
 }
@@ -0,0 +1,138 @@
+package evaluator;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class LruCache<K, V> {
+    private static final class Item<V>
+    {
+        final V value;
+        //System.nanoTime() deadline, unused without a time to live
+        final long expires;
+
+        Item(V value, long expires)
+        {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private final int capacity;
+    //0 keeps entries until they are evicted
+    private final long timeToLive;
+    private final LinkedHashMap<K, Item<V>> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    LruCache(int capacity)
+    {
+        this(capacity, 0);
+    }
+
+    LruCache(int capacity, long timeToLiveNanos)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("cache capacity should be positive");
+        }
+        if (timeToLiveNanos < 0)
+        {
+            throw new IllegalArgumentException("time to live should not be negative");
+        }
+        this.capacity = capacity;
+        timeToLive = timeToLiveNanos;
+        entries = new LinkedHashMap<K, Item<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Item<V>> eldest)
+            {
+                if (size() > LruCache.this.capacity)
+                {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    synchronized V get(K key)
+    {
+        Item<V> entry = entries.get(key);
+        if (entry != null && isExpired(entry))
+        {
+            entries.remove(key);
+            expirations++;
+            entry = null;
+        }
+
+        if (entry == null)
+        {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    //keeps the value that made it into the cache first, so concurrent
+    //loaders of the same key end up sharing one instance
+    synchronized V putIfAbsent(K key, V value)
+    {
+        Item<V> existing = entries.get(key);
+        if (existing != null)
+        {
+            if (!isExpired(existing))
+            {
+                return existing.value;
+            }
+            //expired after the caller's miss, replaced below
+            expirations++;
+        }
+        entries.put(key, new Item<>(value, timeToLive == 0 ? 0 : System.nanoTime() + timeToLive));
+        return value;
+    }
+
+    private boolean isExpired(Item<V> entry)
+    {
+        return timeToLive != 0 && System.nanoTime() - entry.expires >= 0;
+    }
+
+    synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    synchronized int size()
+    {
+        return entries.size();
+    }
+
+    int capacity()
+    {
+        return capacity;
+    }
+
+    synchronized long hits()
+    {
+        return hits;
+    }
+
+    synchronized long misses()
+    {
+        return misses;
+    }
+
+    synchronized long evictions()
+    {
+        return evictions;
+    }
+
+    //entries dropped because they outlived the time to live
+    synchronized long expirations()
+    {
+        return expirations;
+    }
+}
@@ -0,0 +1,80 @@
+package evaluator;
+
+/**
+ * Switch for pipeline instrumentation. Metrics are off until a listener is set, and while they are off
+ * instrumented code only reads one field and doesn't even call {@link System#nanoTime()}.
+ */
+public final class Metrics {
+    public enum Stage
+    {
+        Lex,
+        Parse,
+        Substitute,
+        Evaluate
+    }
+
+    private static volatile MetricsListener listener;
+
+    private Metrics()
+    {
+    }
+
+    /**
+     * Installs the listener receiving all measurements, null turns metrics off.
+     */
+    public static void setListener(MetricsListener listener)
+    {
+        Metrics.listener = listener;
+    }
+
+    public static MetricsListener listener()
+    {
+        return listener;
+    }
+
+    //start time of a measured step, the clock is only read while a listener is set
+    static long start(MetricsListener listener)
+    {
+        return listener == null ? 0 : System.nanoTime();
+    }
+
+    static void lexed(MetricsListener listener, int tokens, long start)
+    {
+        if (listener != null)
+        {
+            listener.lexed(tokens, System.nanoTime() - start);
+        }
+    }
+
+    static void parsed(MetricsListener listener, int tokens, int depth, long start)
+    {
+        if (listener != null)
+        {
+            listener.parsed(tokens, depth, System.nanoTime() - start);
+        }
+    }
+
+    static void substituted(MetricsListener listener, long start)
+    {
+        if (listener != null)
+        {
+            listener.substituted(System.nanoTime() - start);
+        }
+    }
+
+    static void evaluated(MetricsListener listener, long start)
+    {
+        if (listener != null)
+        {
+            listener.evaluated(System.nanoTime() - start);
+        }
+    }
+
+    static void failed(MetricsListener listener, Stage stage, RuntimeException error)
+    {
+        if (listener != null)
+        {
+            listener.failed(stage, error);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package evaluator;
+
+/**
+ * Receives measurements from the evaluator pipeline once installed with
+ * {@link Metrics#setListener(MetricsListener)}. Methods are called on the thread doing the work,
+ * so implementations have to be thread-safe and cheap. Times are in nanoseconds.
+ */
+public interface MetricsListener {
+    //one Lexer construction or Lexer.scan
+    default void lexed(int tokens, long nanos)
+    {
+    }
+
+    //one SyntaxTree construction, includes lexing when the tokens come from a StreamingLexer
+    default void parsed(int tokens, int depth, long nanos)
+    {
+    }
+
+    default void substituted(long nanos)
+    {
+    }
+
+    //one evaluation of a SyntaxTree, CompiledExpression or Bindings
+    default void evaluated(long nanos)
+    {
+    }
+
+    default void failed(Metrics.Stage stage, RuntimeException error)
+    {
+    }
+}
@@ -0,0 +1,174 @@
+package evaluator;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Listener aggregating measurements in memory: per stage counts, latency histograms and failures
+ * by exception type, and histograms of token counts and tree depths of parsed expressions.
+ * Recording only touches {@link LongAdder}s, so it scales with the number of threads.
+ */
+public final class MetricsRecorder implements MetricsListener {
+    /**
+     * Histogram with power of two buckets, bucket b counts the values in [2^(b-1), 2^b).
+     */
+    public static final class Histogram
+    {
+        private final LongAdder[] buckets = new LongAdder[Long.SIZE + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        Histogram()
+        {
+            for (int i = 0; i < buckets.length; i++)
+            {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long value)
+        {
+            buckets[Long.SIZE - Long.numberOfLeadingZeros(Math.max(value, 0))].increment();
+            count.increment();
+            sum.add(value);
+        }
+
+        public long count()
+        {
+            return count.sum();
+        }
+
+        public long sum()
+        {
+            return sum.sum();
+        }
+
+        public double mean()
+        {
+            long count = count();
+            return count == 0 ? 0 : (double) sum() / count;
+        }
+
+        /**
+         * Upper bound of the bucket holding the given quantile, within a factor of two of the real value.
+         */
+        public long quantile(double quantile)
+        {
+            long total = count();
+            long threshold = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++)
+            {
+                seen += buckets[i].sum();
+                if (seen >= threshold && seen > 0)
+                {
+                    return i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1;
+                }
+            }
+            return 0;
+        }
+    }
+
+    private final Map<Metrics.Stage, LongAdder> counts = new EnumMap<>(Metrics.Stage.class);
+    private final Map<Metrics.Stage, Histogram> latencies = new EnumMap<>(Metrics.Stage.class);
+    private final Map<Metrics.Stage, ConcurrentHashMap<String, LongAdder>> failures =
+            new EnumMap<>(Metrics.Stage.class);
+    private final Histogram tokens = new Histogram();
+    private final Histogram depths = new Histogram();
+
+    public MetricsRecorder()
+    {
+        for (Metrics.Stage stage: Metrics.Stage.values())
+        {
+            counts.put(stage, new LongAdder());
+            latencies.put(stage, new Histogram());
+            failures.put(stage, new ConcurrentHashMap<>());
+        }
+    }
+
+    @Override
+    public void lexed(int tokens, long nanos)
+    {
+        record(Metrics.Stage.Lex, nanos);
+    }
+
+    @Override
+    public void parsed(int tokens, int depth, long nanos)
+    {
+        record(Metrics.Stage.Parse, nanos);
+        this.tokens.record(tokens);
+        depths.record(depth);
+    }
+
+    @Override
+    public void substituted(long nanos)
+    {
+        record(Metrics.Stage.Substitute, nanos);
+    }
+
+    @Override
+    public void evaluated(long nanos)
+    {
+        record(Metrics.Stage.Evaluate, nanos);
+    }
+
+    @Override
+    public void failed(Metrics.Stage stage, RuntimeException error)
+    {
+        failures.get(stage).computeIfAbsent(error.getClass().getName(), type -> new LongAdder()).increment();
+    }
+
+    private void record(Metrics.Stage stage, long nanos)
+    {
+        counts.get(stage).increment();
+        latencies.get(stage).record(nanos);
+    }
+
+    //successful runs of the stage
+    public long count(Metrics.Stage stage)
+    {
+        return counts.get(stage).sum();
+    }
+
+    public Histogram latency(Metrics.Stage stage)
+    {
+        return latencies.get(stage);
+    }
+
+    public long failures(Metrics.Stage stage)
+    {
+        long total = 0;
+        for (LongAdder count: failures.get(stage).values())
+        {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Failures of the stage by exception class name.
+     */
+    public Map<String, Long> failuresByType(Metrics.Stage stage)
+    {
+        Map<String, Long> byType = new HashMap<>();
+        for (Map.Entry<String, LongAdder> entry: failures.get(stage).entrySet())
+        {
+            byType.put(entry.getKey(), entry.getValue().sum());
+        }
+        return byType;
+    }
+
+    //token counts of parsed expressions
+    public Histogram tokens()
+    {
+        return tokens;
+    }
+
+    public Histogram depths()
+    {
+        return depths;
+    }
+}
@@ -0,0 +1,65 @@
+package evaluator;
+
+/**
+ * Bounds on the expressions the lexer and parser accept, for input from untrusted sources.
+ * They are checked while the input is read, so an oversized expression is rejected as soon as it
+ * crosses a limit. Memory is linear in the limits only with a token length limit, which the
+ * three-argument constructor leaves unbounded: without one, a single huge number or name is buffered whole.
+ * Depth counts the nodes on the longest path from the root to a leaf, {@code 1} is a single term.
+ */
+public final class ParseLimits {
+    public static final ParseLimits NONE = new ParseLimits(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+            Integer.MAX_VALUE);
+
+    private final int maxTokens;
+    private final int maxDepth;
+    private final int maxVariables;
+    private final int maxTokenLength;
+
+    public ParseLimits(int maxTokens, int maxDepth, int maxVariables)
+    {
+        this(maxTokens, maxDepth, maxVariables, Integer.MAX_VALUE);
+    }
+
+    public ParseLimits(int maxTokens, int maxDepth, int maxVariables, int maxTokenLength)
+    {
+        if (maxTokens <= 0 || maxDepth <= 0 || maxVariables < 0 || maxTokenLength <= 0)
+        {
+            throw new IllegalArgumentException("token, depth and token length limits should be positive, "
+                    + "the variable limit not negative");
+        }
+        this.maxTokens = maxTokens;
+        this.maxDepth = maxDepth;
+        this.maxVariables = maxVariables;
+        this.maxTokenLength = maxTokenLength;
+    }
+
+    public int maxTokens()
+    {
+        return maxTokens;
+    }
+
+    public int maxDepth()
+    {
+        return maxDepth;
+    }
+
+    //distinct variable names
+    public int maxVariables()
+    {
+        return maxVariables;
+    }
+
+    //characters in one number or variable name
+    public int maxTokenLength()
+    {
+        return maxTokenLength;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ParseLimits{maxTokens=" + maxTokens + ", maxDepth=" + maxDepth + ", maxVariables=" + maxVariables
+                + ", maxTokenLength=" + maxTokenLength + "}";
+    }
+}
@@ -0,0 +1,340 @@
+package evaluator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Postfix form of a compiled expression: an opcode array and a constant pool, run by a loop
+ * over a primitive operand stack. Every instruction is one int, the opcode in the low byte
+ * and its operand (constant index, variable slot or temporary) in the upper bits.
+ * Subexpressions shared by several parents are computed once, kept in a temporary
+ * with TEE and read back with LOAD_TEMP.
+ */
+final class Program implements DoubleArrayFunction {
+    static final int CONST = 0;
+    static final int LOAD = 1;
+    static final int ADD = 2;
+    static final int SUB = 3;
+    static final int MUL = 4;
+    static final int DIV = 5;
+    //copies the top of the stack into a temporary, without popping it
+    static final int TEE = 6;
+    static final int LOAD_TEMP = 7;
+
+    //rows per batch step, small enough for the working columns to stay in the L1 cache
+    static final int CHUNK = 256;
+
+    static final int OPCODE_BITS = 8;
+    static final int OPCODE_MASK = (1 << OPCODE_BITS) - 1;
+    static final int MAX_OPERAND = (1 << (32 - OPCODE_BITS)) - 1;
+
+    final int[] code;
+    final double[] constants;
+    final int maxStack;
+    final int temps;
+
+    Program(int[] code, double[] constants, int maxStack, int temps)
+    {
+        this.code = code;
+        this.constants = constants;
+        this.maxStack = maxStack;
+        this.temps = temps;
+    }
+
+    static int opcode(int instruction)
+    {
+        return instruction & OPCODE_MASK;
+    }
+
+    static int operand(int instruction)
+    {
+        return instruction >>> OPCODE_BITS;
+    }
+
+    static int instruction(int opcode, int operand)
+    {
+        if (operand > MAX_OPERAND)
+        {
+            throw new IllegalArgumentException("expression too large to compile, operand " + operand
+                    + " is over " + MAX_OPERAND);
+        }
+        return opcode | operand << OPCODE_BITS;
+    }
+
+    //operand stack followed by the temporaries
+    int frameSize()
+    {
+        return maxStack + temps;
+    }
+
+    static Program compile(CompiledExpression.Node root, Map<String, Integer> slots)
+    {
+        Map<CompiledExpression.Node, Integer> references = countReferences(root);
+        Map<CompiledExpression.Node, Integer> tempOf = new IdentityHashMap<>();
+        int[] code = new int[16];
+        int size = 0;
+        ArrayList<Double> constants = new ArrayList<>();
+        //one pool entry per distinct value, Double equality keeps 0.0 and -0.0 apart
+        Map<Double, Integer> constantIndex = new HashMap<>();
+        int stack = 0;
+        int maxStack = 1;
+
+        //post-order over the dag, a node is expanded the first time it's seen and emitted the second
+        ArrayDeque<CompiledExpression.Node> pending = new ArrayDeque<>();
+        ArrayDeque<Boolean> expanded = new ArrayDeque<>();
+        pending.push(root);
+        expanded.push(false);
+        while (!pending.isEmpty())
+        {
+            CompiledExpression.Node node = pending.peek();
+            boolean isExpanded = expanded.peek();
+            Integer temp = tempOf.get(node);
+
+            if (node.left != null && temp == null && !isExpanded)
+            {
+                expanded.pop();
+                expanded.push(true);
+                pending.push(node.right);
+                expanded.push(false);
+                pending.push(node.left);
+                expanded.push(false);
+                continue;
+            }
+
+            pending.pop();
+            expanded.pop();
+            if (size + 2 > code.length)
+            {
+                code = Arrays.copyOf(code, code.length * 2);
+            }
+
+            if (temp != null)
+            {
+                code[size++] = instruction(LOAD_TEMP, temp);
+                stack++;
+            }
+            else
+            {
+                switch (node.type)
+                {
+                    case Number:
+                        Integer index = constantIndex.get(node.value);
+                        if (index == null)
+                        {
+                            index = constants.size();
+                            constantIndex.put(node.value, index);
+                            constants.add(node.value);
+                        }
+                        code[size++] = instruction(CONST, index);
+                        stack++;
+                        break;
+                    case Variable:
+                        code[size++] = instruction(LOAD, slots.get(node.name));
+                        stack++;
+                        break;
+                    case Plus:
+                        code[size++] = ADD;
+                        stack--;
+                        break;
+                    case Minus:
+                        code[size++] = SUB;
+                        stack--;
+                        break;
+                    case Product:
+                        code[size++] = MUL;
+                        stack--;
+                        break;
+                    case Division:
+                        code[size++] = DIV;
+                        stack--;
+                        break;
+                    default:
+                        throw new RuntimeException("Uncovered token type found");
+                }
+
+                if (node.left != null && references.get(node) > 1)
+                {
+                    temp = tempOf.size();
+                    tempOf.put(node, temp);
+                    code[size++] = instruction(TEE, temp);
+                }
+            }
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        double[] pool = new double[constants.size()];
+        for (int i = 0; i < pool.length; i++)
+        {
+            pool[i] = constants.get(i);
+        }
+        return new Program(Arrays.copyOf(code, size), pool, maxStack, tempOf.size());
+    }
+
+    private static Map<CompiledExpression.Node, Integer> countReferences(CompiledExpression.Node root)
+    {
+        Map<CompiledExpression.Node, Integer> references = new IdentityHashMap<>();
+        ArrayDeque<CompiledExpression.Node> pending = new ArrayDeque<>();
+        references.put(root, 1);
+        pending.push(root);
+        while (!pending.isEmpty())
+        {
+            CompiledExpression.Node node = pending.pop();
+            if (node.left == null)
+            {
+                continue;
+            }
+            reference(node.left, references, pending);
+            reference(node.right, references, pending);
+        }
+        return references;
+    }
+
+    private static void reference(CompiledExpression.Node child, Map<CompiledExpression.Node, Integer> references,
+                                  ArrayDeque<CompiledExpression.Node> pending)
+    {
+        Integer count = references.get(child);
+        references.put(child, count == null ? 1 : count + 1);
+        //children of a shared node are only counted once
+        if (count == null)
+        {
+            pending.push(child);
+        }
+    }
+
+    @Override
+    public double applyAsDouble(double[] values)
+    {
+        return run(values, new double[frameSize()]);
+    }
+
+    double run(double[] values, double[] stack)
+    {
+        int sp = 0;
+        for (int instruction: code)
+        {
+            switch (instruction & OPCODE_MASK)
+            {
+                case CONST:
+                    stack[sp++] = constants[instruction >>> OPCODE_BITS];
+                    break;
+                case LOAD:
+                    stack[sp++] = values[instruction >>> OPCODE_BITS];
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] += stack[sp];
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] -= stack[sp];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] *= stack[sp];
+                    break;
+                case DIV:
+                    sp--;
+                    stack[sp - 1] /= stack[sp];
+                    break;
+                case TEE:
+                    stack[maxStack + (instruction >>> OPCODE_BITS)] = stack[sp - 1];
+                    break;
+                case LOAD_TEMP:
+                    stack[sp++] = stack[maxStack + (instruction >>> OPCODE_BITS)];
+                    break;
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * Evaluates rows [from, to) with variable values taken from columns[slot][row], running every
+     * instruction over a chunk of rows at once. The per-operator loops are plain array loops,
+     * which the JIT can unroll and compile to SIMD instructions.
+     */
+    void runBatch(double[][] columns, double[] out, int from, int to)
+    {
+        double[][] registers = new double[maxStack + temps][CHUNK];
+        double[][] constantColumns = new double[constants.length][CHUNK];
+        for (int i = 0; i < constants.length; i++)
+        {
+            Arrays.fill(constantColumns[i], constants[i]);
+        }
+
+        //a stack entry is a column and the offset of the chunk's first row in it
+        double[][] operands = new double[maxStack][];
+        int[] offsets = new int[maxStack];
+
+        for (int start = from; start < to; start += CHUNK)
+        {
+            int length = Math.min(CHUNK, to - start);
+            int sp = 0;
+            for (int instruction: code)
+            {
+                int operand = instruction >>> OPCODE_BITS;
+                switch (instruction & OPCODE_MASK)
+                {
+                    case CONST:
+                        operands[sp] = constantColumns[operand];
+                        offsets[sp++] = 0;
+                        break;
+                    case LOAD:
+                        operands[sp] = columns[operand];
+                        offsets[sp++] = start;
+                        break;
+                    case LOAD_TEMP:
+                        operands[sp] = registers[maxStack + operand];
+                        offsets[sp++] = 0;
+                        break;
+                    case TEE:
+                        System.arraycopy(operands[sp - 1], offsets[sp - 1], registers[maxStack + operand], 0, length);
+                        break;
+                    default:
+                        sp--;
+                        double[] result = registers[sp - 1];
+                        combine(instruction & OPCODE_MASK, operands[sp - 1], offsets[sp - 1],
+                                operands[sp], offsets[sp], result, length);
+                        operands[sp - 1] = result;
+                        offsets[sp - 1] = 0;
+                }
+            }
+            System.arraycopy(operands[0], offsets[0], out, start, length);
+        }
+    }
+
+    private static void combine(int opcode, double[] lhs, int lhsOffset, double[] rhs, int rhsOffset,
+                                double[] result, int length)
+    {
+        switch (opcode)
+        {
+            case ADD:
+                for (int i = 0; i < length; i++)
+                {
+                    result[i] = lhs[lhsOffset + i] + rhs[rhsOffset + i];
+                }
+                break;
+            case SUB:
+                for (int i = 0; i < length; i++)
+                {
+                    result[i] = lhs[lhsOffset + i] - rhs[rhsOffset + i];
+                }
+                break;
+            case MUL:
+                for (int i = 0; i < length; i++)
+                {
+                    result[i] = lhs[lhsOffset + i] * rhs[rhsOffset + i];
+                }
+                break;
+            case DIV:
+                for (int i = 0; i < length; i++)
+                {
+                    result[i] = lhs[lhsOffset + i] / rhs[rhsOffset + i];
+                }
+                break;
+        }
+    }
+}
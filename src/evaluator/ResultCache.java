@@ -0,0 +1,145 @@
+package evaluator;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded, thread-safe memo of evaluation results keyed by compiled expression and variable values,
+ * so evaluating an expression again with the same values is a hash lookup instead of a run of
+ * the expression. The least recently used result is evicted once the capacity is exceeded, and
+ * with a time to live results also expire that long after they were computed.
+ * Expressions are compared by identity, see {@link ExpressionCache} for getting the same instance
+ * for the same source, and values bit by bit, so 0 and -0 are different keys.
+ */
+public class ResultCache {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final class Key
+    {
+        final CompiledExpression expression;
+        final double[] values;
+        private final int hash;
+
+        Key(CompiledExpression expression, double[] values)
+        {
+            this.expression = expression;
+            this.values = values;
+            hash = 31 * System.identityHashCode(expression) + Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key) o;
+            return expression == other.expression && hash == other.hash && Arrays.equals(values, other.values);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+
+    private final LruCache<Key, Double> results;
+
+    public ResultCache()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ResultCache(int capacity)
+    {
+        results = new LruCache<>(capacity);
+    }
+
+    public ResultCache(int capacity, long timeToLive, TimeUnit unit)
+    {
+        results = new LruCache<>(capacity, unit.toNanos(timeToLive));
+    }
+
+    /**
+     * Same as {@link CompiledExpression#evaluate(double...)}, memoized.
+     */
+    public double evaluate(CompiledExpression expression, double... values)
+    {
+        if (values.length < expression.slotCount())
+        {
+            throw new SyntaxErrorException("Cannot evaluate, expected " + expression.slotCount()
+                    + " variable values but got " + values.length);
+        }
+
+        //copied, the caller may reuse its array
+        Key key = new Key(expression, Arrays.copyOf(values, expression.slotCount()));
+        Double result = results.get(key);
+        if (result != null)
+        {
+            return result;
+        }
+        return results.putIfAbsent(key, expression.evaluate(key.values));
+    }
+
+    /**
+     * Same as {@link CompiledExpression#evaluate(Map)}, memoized.
+     */
+    public double evaluate(CompiledExpression expression, Map<String, Double> values)
+    {
+        return evaluate(expression, expression.slotValues(values));
+    }
+
+    public void clear()
+    {
+        results.clear();
+    }
+
+    public int size()
+    {
+        return results.size();
+    }
+
+    public int capacity()
+    {
+        return results.capacity();
+    }
+
+    public long hits()
+    {
+        return results.hits();
+    }
+
+    public long misses()
+    {
+        return results.misses();
+    }
+
+    //fraction of lookups answered from the cache, 0 before the first one
+    public double hitRate()
+    {
+        long hits = hits();
+        long lookups = hits + misses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public long evictions()
+    {
+        return results.evictions();
+    }
+
+    public long expirations()
+    {
+        return results.expirations();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ResultCache{size=" + size() + ", capacity=" + capacity()
+                + ", hits=" + hits() + ", misses=" + misses() + ", evictions=" + evictions()
+                + ", expirations=" + expirations() + "}";
+    }
+}
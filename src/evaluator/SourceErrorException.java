@@ -0,0 +1,31 @@
+package evaluator;
+
+//error at a position in the source, the common part of lexical and syntax errors
+abstract class SourceErrorException extends IllegalArgumentException {
+    private final int offset;
+    private final boolean stackTrace;
+
+    SourceErrorException(String message, int offset, boolean stackTrace)
+    {
+        super(message);
+        this.offset = offset;
+        this.stackTrace = stackTrace;
+        if (stackTrace)
+        {
+            fillInStackTrace();
+        }
+    }
+
+    //character offset in the source where the error was found, -1 if unknown
+    public int offset()
+    {
+        return offset;
+    }
+
+    //the Throwable constructor calls this before stackTrace is set, the trace is filled in by ours
+    @Override
+    public synchronized Throwable fillInStackTrace()
+    {
+        return stackTrace ? super.fillInStackTrace() : this;
+    }
+}
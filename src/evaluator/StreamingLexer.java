@@ -0,0 +1,235 @@
+package evaluator;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Lexer that reads its input incrementally and hands tokens to the parser one at a time,
+ * so neither the whole text nor the whole token list is ever held in memory.
+ * Used as {@code new SyntaxTree(new StreamingLexer(reader))}. Byte input is read as ASCII,
+ * which covers every character an expression can contain.
+ */
+public final class StreamingLexer {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final ByteBuffer bytes;
+    private final char[] buffer;
+    private int position;
+    private int limit;
+    //chars consumed so far, the source offset of the next char
+    private int consumed;
+    private boolean used;
+
+    public StreamingLexer(Reader reader)
+    {
+        this.reader = reader;
+        bytes = null;
+        buffer = new char[BUFFER_SIZE];
+    }
+
+    /**
+     * Reads the remaining bytes of the buffer, advancing its position.
+     */
+    public StreamingLexer(ByteBuffer bytes)
+    {
+        reader = null;
+        this.bytes = bytes;
+        buffer = null;
+    }
+
+    /**
+     * Lexes a memory-mapped file, the file is paged in by the OS as parsing goes.
+     */
+    public static StreamingLexer map(Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            return new StreamingLexer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    //next char without consuming it, -1 at the end of the input
+    private int peek()
+    {
+        if (bytes != null)
+        {
+            return bytes.hasRemaining() ? bytes.get(bytes.position()) & 0xff : -1;
+        }
+
+        if (position == limit)
+        {
+            try {
+                limit = reader.read(buffer, 0, buffer.length);
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            position = 0;
+            if (limit <= 0)
+            {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position];
+    }
+
+    private void consume()
+    {
+        consumed++;
+        if (bytes != null)
+        {
+            bytes.position(bytes.position() + 1);
+        }
+        else
+        {
+            position++;
+        }
+    }
+
+    private static boolean isLetter(int c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isNumberChar(int c)
+    {
+        return (c >= '0' && c <= '9') || c == '.';
+    }
+
+    //numbers and variable names longer than maxTokenLength are rejected before they are buffered
+    TokenCursor cursor(final int maxTokenLength)
+    {
+        if (used)
+        {
+            throw new IllegalStateException("the input of a streaming lexer can be read only once");
+        }
+        used = true;
+
+        return new TokenCursor() {
+            private final StringBuilder text = new StringBuilder();
+            private Token.TokenType type;
+            private double number;
+            private int start;
+
+            @Override
+            public boolean advance()
+            {
+                int c = peek();
+                while (c == ' ')
+                {
+                    consume();
+                    c = peek();
+                }
+                start = consumed;
+                if (c == -1)
+                {
+                    return false;
+                }
+
+                text.setLength(0);
+                switch (c)
+                {
+                    case '+':
+                        return operator(Token.TokenType.Plus);
+                    case '-':
+                        return operator(Token.TokenType.Minus);
+                    case '*':
+                        return operator(Token.TokenType.Product);
+                    case '/':
+                        return operator(Token.TokenType.Division);
+                    case '(':
+                        return operator(Token.TokenType.OpeningBracket);
+                    case ')':
+                        return operator(Token.TokenType.ClosingBracket);
+                }
+
+                if (isNumberChar(c))
+                {
+                    while (isNumberChar(c))
+                    {
+                        append(c);
+                        consume();
+                        c = peek();
+                    }
+                    type = Token.TokenType.Number;
+                    number = Lexer.parseNumber(text, 0, text.length(), start, true);
+                    return true;
+                }
+
+                if (isLetter(c))
+                {
+                    while (isLetter(c))
+                    {
+                        append(c);
+                        consume();
+                        c = peek();
+                    }
+                    if (c == '_')
+                    {
+                        throw new LexicalErrorException("wrong variable name format", consumed);
+                    }
+                    type = Token.TokenType.Variable;
+                    return true;
+                }
+
+                if (c == '_')
+                {
+                    throw new LexicalErrorException("wrong variable name format", consumed);
+                }
+                throw new LexicalErrorException("could not determine the char type", consumed);
+            }
+
+            private void append(int c)
+            {
+                if (text.length() == maxTokenLength)
+                {
+                    throw Lexer.tooLong(maxTokenLength, start, true);
+                }
+                text.append((char) c);
+            }
+
+            private boolean operator(Token.TokenType operator)
+            {
+                consume();
+                type = operator;
+                return true;
+            }
+
+            @Override
+            public Token.TokenType type()
+            {
+                return type;
+            }
+
+            @Override
+            public Token token()
+            {
+                if (type == Token.TokenType.Number || type == Token.TokenType.Variable)
+                {
+                    return new Token(text.toString(), type);
+                }
+                return Token.of(type);
+            }
+
+            @Override
+            public double number()
+            {
+                return number;
+            }
+
+            @Override
+            public int offset()
+            {
+                return start;
+            }
+        };
+    }
+}
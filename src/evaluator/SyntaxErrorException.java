@@ -1,8 +1,21 @@
 package evaluator;
 
-public class SyntaxErrorException extends IllegalArgumentException {
+public class SyntaxErrorException extends SourceErrorException {
     public SyntaxErrorException(String message)
     {
-        super(message);
+        this(message, -1, true);
+    }
+
+    public SyntaxErrorException(String message, int offset)
+    {
+        this(message, offset, true);
+    }
+
+    /**
+     * Without a stack trace the exception is far cheaper to create, for errors that are caught right away.
+     */
+    public SyntaxErrorException(String message, int offset, boolean stackTrace)
+    {
+        super(message, offset, stackTrace);
     }
 }
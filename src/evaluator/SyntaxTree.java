@@ -2,6 +2,11 @@ package evaluator;
 
 import java.util.*;
 
+/**
+ * Parsed expression. {@link #substitute(Map)} is the only method that changes a tree; between
+ * substitutions a tree can be shared between threads, evaluating it with {@link #evaluate()} or
+ * {@link #evaluate(Map)} or compiling it only reads it.
+ */
 public class SyntaxTree {
     enum Computable{
         Yes,
@@ -11,29 +16,38 @@ public class SyntaxTree {
     private class Node
     {
         Token token;
+        //starts as token.type, substitute turns Variable nodes into Number nodes
+        Token.TokenType type;
+        //parsed once, so evaluation doesn't touch the token text
+        double value;
         Node left;
         Node right;
         int depth;
         Computable computable;
 
 
-        Node(Token tk)
+        //variable leaf, numbers come with their parsed value
+        Node(Token variable)
+        {
+            token = variable;
+            type = Token.TokenType.Variable;
+            depth = 1;
+            computable = Computable.No;
+        }
+
+        Node(Token tk, double number)
         {
             token = tk;
+            type = tk.type;
+            value = number;
             depth = 1;
-            if (tk.type == Token.TokenType.Variable)
-            {
-                computable = Computable.No;
-            }
-            else
-            {
-                computable = Computable.Yes;
-            }
+            computable = Computable.Yes;
         }
 
         Node(Token tk, Node lhs, Node rhs)
         {
             token = tk;
+            type = tk.type;
             left = lhs;
             right = rhs;
             depth = Math.max(left.depth, right.depth) + 1;
@@ -47,155 +61,299 @@ public class SyntaxTree {
                 computable = Computable.Yes;
             }
         }
+    }
 
-        double evaluate()
-        {
-            if (left != null && right != null
-                    && (left.token.type == Token.TokenType.Variable
-                        || right.token.type == Token.TokenType.Variable))
-            {
-                throw new SyntaxErrorException("Cannot evaluate, at least one variable is not substituted yet");
-            }
+    private final Node root;
+    //children before their parents, the shape of the tree never changes after parsing
+    private final Node[] postorder;
+    //value of the tree once no variables are left, computed when the last one is substituted
+    private double result;
+    private final Set<String> variablesNames = new HashSet<>();
+    private final Set<String> variablesView = Collections.unmodifiableSet(variablesNames);
 
-            switch (token.type)
-            {
-                case Number:
-                    return Double.parseDouble(token.value);
-                case Plus:
-                    return left.evaluate() + right.evaluate();
-                case Minus:
-                    return left.evaluate() - right.evaluate();
-                case Product:
-                    return left.evaluate() * right.evaluate();
-                case Division:
-                    return left.evaluate() / right.evaluate();
-            }
+    //indexed by TokenType ordinal
+    private static final int[] inversePrecedence = new int[Token.TokenType.values().length];
+    static {
+        inversePrecedence[Token.TokenType.Plus.ordinal()] = 1;
+        inversePrecedence[Token.TokenType.Minus.ordinal()] = 1;
+        inversePrecedence[Token.TokenType.Product.ordinal()] = 2;
+        inversePrecedence[Token.TokenType.Division.ordinal()] = 2;
+        inversePrecedence[Token.TokenType.OpeningBracket.ordinal()] = 0;
+    }
 
-            throw new RuntimeException("Uncovered token type found");
-        }
+    public SyntaxTree(Queue<Token> tokenQueue)
+    {
+        this(TokenCursor.of(tokenQueue), true, ParseLimits.NONE);
     }
 
-    private Node root;
-    private Set<String> variablesNames = new HashSet<>();
+    public SyntaxTree(Queue<Token> tokenQueue, ParseLimits limits)
+    {
+        this(TokenCursor.of(tokenQueue), true, limits);
+    }
 
-    private static final Map<Token.TokenType, Integer> inversePrecedence = new HashMap<>();
-    static {
-        inversePrecedence.put(Token.TokenType.Plus, 1);
-        inversePrecedence.put(Token.TokenType.Minus, 1);
-        inversePrecedence.put(Token.TokenType.Product, 2);
-        inversePrecedence.put(Token.TokenType.Division, 2);
-        inversePrecedence.put(Token.TokenType.OpeningBracket, 0);
+    public SyntaxTree(TokenStream tokens)
+    {
+        this(tokens.cursor(), true, ParseLimits.NONE);
     }
 
-    public SyntaxTree(Queue<Token> tokenQueue)
+    public SyntaxTree(TokenStream tokens, ParseLimits limits)
+    {
+        this(tokens.cursor(), true, limits);
+    }
+
+    //without stack traces in the syntax errors, for callers that catch them right away
+    SyntaxTree(TokenStream tokens, boolean stackTraces, ParseLimits limits)
+    {
+        this(tokens.cursor(), stackTraces, limits);
+    }
+
+    /**
+     * Builds the tree in one pass while the lexer reads its input.
+     */
+    public SyntaxTree(StreamingLexer lexer)
+    {
+        this(lexer, ParseLimits.NONE);
+    }
+
+    /**
+     * Builds the tree while the lexer reads its input, and stops reading as soon as a limit is crossed.
+     */
+    public SyntaxTree(StreamingLexer lexer, ParseLimits limits)
+    {
+        this(lexer.cursor(limits.maxTokenLength()), true, limits);
+    }
+
+    private SyntaxTree(TokenCursor tokens, boolean stackTraces, ParseLimits limits)
+    {
+        Parser parser = new Parser(tokens, stackTraces, limits);
+        MetricsListener listener = Metrics.listener();
+        long start = Metrics.start(listener);
+        try {
+            root = parser.parse();
+        }
+        catch (RuntimeException e)
+        {
+            Metrics.failed(listener, Metrics.Stage.Parse, e);
+            throw e;
+        }
+        postorder = parser.created.toArray(new Node[0]);
+        if (root.computable == Computable.Yes)
+        {
+            result = evaluateWith(Collections.<String, Double>emptyMap());
+        }
+        Metrics.parsed(listener, parser.tokenCount, root.depth, start);
+    }
+
+    //state of one run of the shunting-yard parser
+    private final class Parser
     {
-        Stack<Token> prevOps = new Stack<>();
-        Stack<Node> prevExpressions = new Stack<>();
+        private final TokenCursor tokens;
+        private final boolean stackTraces;
+        private final ParseLimits limits;
+        private final ArrayDeque<Token> prevOps = new ArrayDeque<>();
+        private final ArrayDeque<Node> prevExpressions = new ArrayDeque<>();
+        //nodes in the order they were built, which is the postfix order of the finished tree
+        final ArrayList<Node> created = new ArrayList<>();
+        int tokenCount;
+
+        Parser(TokenCursor tokens, boolean stackTraces, ParseLimits limits)
+        {
+            this.tokens = tokens;
+            this.stackTraces = stackTraces;
+            this.limits = limits;
+        }
 
-        while (!tokenQueue.isEmpty())
+        Node parse()
         {
-            Token currentToken = tokenQueue.remove();
-            switch (currentToken.type)
+            while (tokens.advance())
             {
-                case Plus:
-                case Minus:
-                case Product:
-                case Division:
-                    sweepUntilHigherPrecedence(prevExpressions, prevOps, currentToken);
-                    prevOps.push(currentToken);
-                    break;
-                case Variable:
-                    variablesNames.add(currentToken.value);
-                case Number:
-                    prevExpressions.push(new Node(currentToken));
-                    break;
-                case OpeningBracket:
-                    prevOps.push(currentToken);
-                    break;
-                case ClosingBracket:
-                    while (prevOps.peek().type != Token.TokenType.OpeningBracket
-                            && !prevOps.isEmpty())
-                    {
-                        Token operator = prevOps.pop();
-                        if (prevExpressions.size() < 2)
+                if (++tokenCount > limits.maxTokens())
+                {
+                    throw error("expression has more than " + limits.maxTokens() + " tokens");
+                }
+
+                switch (tokens.type())
+                {
+                    case Plus:
+                    case Minus:
+                    case Product:
+                    case Division:
+                        Token currentToken = tokens.token();
+                        sweepUntilHigherPrecedence(currentToken);
+                        prevOps.push(currentToken);
+                        break;
+                    case Variable:
+                        Token variable = tokens.token();
+                        if (variablesNames.add(variable.value) && variablesNames.size() > limits.maxVariables())
                         {
-                            throw new SyntaxErrorException("invalid number of numbers and/or operators");
+                            throw error("expression has more than " + limits.maxVariables() + " variables");
+                        }
+                        push(new Node(variable));
+                        break;
+                    case Number:
+                        push(new Node(tokens.token(), tokens.number()));
+                        break;
+                    case OpeningBracket:
+                        prevOps.push(tokens.token());
+                        break;
+                    case ClosingBracket:
+                        while (!prevOps.isEmpty()
+                                && prevOps.peek().type != Token.TokenType.OpeningBracket)
+                        {
+                            push(buildExpression());
                         }
-                        Node rhs = prevExpressions.pop();
-                        Node lhs = prevExpressions.pop();
 
-                        prevExpressions.push(new Node(operator, lhs, rhs));
-                    }
+                        if (prevOps.isEmpty())
+                        {
+                            throw error("Unequal amount of opening and closing brackets");
+                        }
 
-                    if (prevOps.isEmpty())
-                    {
-                        throw new IllegalArgumentException("Unequal amount of opening and closing brackets");
-                    }
+                        prevOps.pop();
+                        break;
+                }
+            }
 
-                    prevOps.pop();
-                    break;
+            //the cursor is past the last token, errors from here on are at the end of the input
+            sweepAll();
+            if (prevExpressions.size() != 1)
+            {
+                throw error("illegal combination of operators and numbers");
             }
+
+            return prevExpressions.pop();
         }
 
-        sweepAll(prevExpressions, prevOps);
-        if (prevExpressions.size() != 1)
+        private Node buildExpression()
         {
-            throw new SyntaxErrorException("illegal combination of operators and numbers");
-        }
+            Token operator = prevOps.pop();
+            if (operator.type == Token.TokenType.OpeningBracket)
+            {
+                throw error("Unequal amount of opening and closing brackets");
+            }
 
-        root = prevExpressions.pop();
-    }
+            if (prevExpressions.size() < 2)
+            {
+                throw error("invalid number of numbers and/or operators");
+            }
 
-    private Node buildExpression(Stack<Node> prevExpressions, Stack<Token> prevOps)
-    {
-        Token operator = prevOps.pop();
+            Node rhs = prevExpressions.pop();
+            Node lhs = prevExpressions.pop();
+
+            Node expression = new Node(operator, lhs, rhs);
+            if (expression.depth > limits.maxDepth())
+            {
+                throw error("expression is deeper than " + limits.maxDepth() + " levels");
+            }
+            return expression;
+        }
+
+        private void sweepUntilHigherPrecedence(Token currentToken)
+        {
+            while (!prevOps.isEmpty()
+                    && inversePrecedence[prevOps.peek().type.ordinal()] >= inversePrecedence[currentToken.type.ordinal()])
+            {
+                push(buildExpression());
+            }
+        }
 
-        if (prevExpressions.size() < 2)
+        private void sweepAll()
         {
-            throw new SyntaxErrorException("invalid number of numbers and/or operators");
+            while (!prevOps.isEmpty())
+            {
+                push(buildExpression());
+            }
         }
 
-        Node rhs = prevExpressions.pop();
-        Node lhs = prevExpressions.pop();
+        private void push(Node node)
+        {
+            created.add(node);
+            prevExpressions.push(node);
+        }
 
-        return new Node(operator, lhs, rhs);
+        private SyntaxErrorException error(String message)
+        {
+            return new SyntaxErrorException(message, tokens.offset(), stackTraces);
+        }
     }
 
-    private void sweepUntilHigherPrecedence(Stack<Node> prevExpressions, Stack<Token> prevOps, Token currentToken)
+    public double evaluate()
     {
-        while (!prevOps.isEmpty()
-                && inversePrecedence.get(prevOps.peek().type) >= inversePrecedence.get(currentToken.type))
+        MetricsListener listener = Metrics.listener();
+        long start = Metrics.start(listener);
+        try {
+            double result = evaluateSubstituted();
+            Metrics.evaluated(listener, start);
+            return result;
+        }
+        catch (RuntimeException e)
         {
-            prevExpressions.push(buildExpression(prevExpressions, prevOps));
+            Metrics.failed(listener, Metrics.Stage.Evaluate, e);
+            throw e;
         }
     }
 
-    private void sweepAll(Stack<Node> prevExpressions, Stack<Token> prevOps)
+    //only reads the tree, so any number of threads can evaluate it at once
+    private double evaluateSubstituted()
     {
-        while (!prevOps.isEmpty())
+        if (root.computable != Computable.Yes)
         {
-            prevExpressions.push(buildExpression(prevExpressions, prevOps));
+            throw new SyntaxErrorException("Cannot evaluate, at least one variable is not substituted yet");
         }
+        return result;
     }
 
-    public double evaluate()
+    /**
+     * Evaluates with the given variable values without changing the tree, all the state
+     * of the evaluation is local to the call.
+     */
+    public double evaluate(Map<String, Double> values)
     {
-        return root.evaluate();
+        MetricsListener listener = Metrics.listener();
+        long start = Metrics.start(listener);
+        try {
+            double result = evaluateWith(values);
+            Metrics.evaluated(listener, start);
+            return result;
+        }
+        catch (RuntimeException e)
+        {
+            Metrics.failed(listener, Metrics.Stage.Evaluate, e);
+            throw e;
+        }
     }
 
-    private Node findLeftmost()
+    private double evaluateWith(Map<String, Double> values)
     {
-        Node current = root;
-        while (current.left != null)
+        //a post-order walk never holds more operands than the tree is deep
+        double[] operands = new double[root.depth];
+        int top = 0;
+        for (Node node: postorder)
         {
-            current = current.left;
+            switch (node.type)
+            {
+                case Number:
+                    operands[top++] = node.value;
+                    break;
+                case Variable:
+                    Double value = values.get(node.token.value);
+                    if (value == null)
+                    {
+                        throw new SyntaxErrorException("Cannot evaluate, variable " + node.token.value
+                                + " has no value");
+                    }
+                    operands[top++] = value;
+                    break;
+                default:
+                    top--;
+                    operands[top - 1] = ExpressionBuilder.fold(node.type, operands[top - 1], operands[top]);
+            }
         }
-        return current;
+        return operands[0];
     }
 
     public Set<String> variables()
     {
-        return variablesNames;
+        return variablesView;
     }
 
     public boolean isComputable()
@@ -214,65 +372,144 @@ public class SyntaxTree {
         return result.toString();
     }
 
+    //in-order walk with an explicit stack
     private void printSubtree(Node root, StringBuilder builder)
     {
-        if (root.left != null)
+        Node[] path = new Node[root.depth];
+        int top = 0;
+        Node node = root;
+        while (node != null || top > 0)
         {
-            printSubtree(root.left, builder);
+            while (node != null)
+            {
+                path[top++] = node;
+                node = node.left;
+            }
+
+            node = path[--top];
+            if (node.type == node.token.type)
+            {
+                builder.append(node.token.value);
+            }
+            else
+            {
+                builder.append(node.value);
+            }
+            node = node.right;
         }
+    }
 
-        builder.append(root.token.value);
+    /**
+     * Builds an immutable copy of the tree in its current state. Variables that are
+     * still unsubstituted are bound when the compiled expression is evaluated.
+     * Constant subexpressions, including substituted variables, are folded on the way.
+     */
+    public CompiledExpression compile()
+    {
+        return compile(CompiledExpression.Backend.Interpreter);
+    }
 
-        if (root.right != null)
-        {
-            printSubtree(root.right, builder);
-        }
+    public CompiledExpression compile(CompiledExpression.Backend backend)
+    {
+        return compile(Collections.<String, Double>emptyMap(), new ExpressionBuilder(), backend);
     }
 
-    public void substitute(Map<String, Double> values)
+    //compiles with nodes shared with the other expressions built by the same builder
+    CompiledExpression compile(ExpressionBuilder builder)
     {
-        substituteSubtree(root, values);
-        recheckSubtree(root);
+        return compile(Collections.<String, Double>emptyMap(), builder, CompiledExpression.Backend.Interpreter);
     }
 
-    private void substituteSubtree(Node root, Map<String, Double> values)
+    /**
+     * Compiles the tree with the given variables replaced by constants and folded away.
+     * Unlike {@link #substitute(Map)} this leaves the tree untouched, so it can be
+     * specialized again for other values.
+     */
+    public CompiledExpression specialize(Map<String, Double> values)
     {
-        Double value = values.get(root.token.value);
-        if (value != null)
-        {
-            root.token.type = Token.TokenType.Number;
-            root.token.value = value.toString();
-            root.computable = Computable.Yes;
-        }
+        return compile(values, new ExpressionBuilder(), CompiledExpression.Backend.Interpreter);
+    }
 
-        if (root.left != null)
-        {
-            substituteSubtree(root.left, values);
-        }
+    private CompiledExpression compile(Map<String, Double> values, ExpressionBuilder builder,
+                                       CompiledExpression.Backend backend)
+    {
+        Set<String> names = new LinkedHashSet<>();
+        Deque<CompiledExpression.Node> operands = new ArrayDeque<>();
 
-        if (root.right != null)
+        //walks the precomputed post-order, so deep trees don't overflow the call stack
+        for (Node node: postorder)
         {
-            substituteSubtree(root.right, values);
+            switch (node.type)
+            {
+                case Number:
+                    operands.push(builder.number(node.value));
+                    break;
+                case Variable:
+                    Double value = values.get(node.token.value);
+                    if (value != null)
+                    {
+                        operands.push(builder.number(value));
+                        break;
+                    }
+                    names.add(node.token.value);
+                    operands.push(builder.variable(node.token.value));
+                    break;
+                default:
+                    CompiledExpression.Node rhs = operands.pop();
+                    CompiledExpression.Node lhs = operands.pop();
+                    operands.push(builder.operation(node.type, lhs, rhs));
+            }
         }
+
+        return new CompiledExpression(operands.pop(), names.toArray(new String[0]), backend);
     }
 
-    private void recheckSubtree(Node root)
+    public void substitute(Map<String, Double> values)
     {
-        if (root.left == null)
+        MetricsListener listener = Metrics.listener();
+        long start = Metrics.start(listener);
+        try {
+            substituteAll(values);
+        }
+        catch (RuntimeException e)
         {
-            return;
+            Metrics.failed(listener, Metrics.Stage.Substitute, e);
+            throw e;
         }
+        Metrics.substituted(listener, start);
+    }
 
-        recheckSubtree(root.left);
-        recheckSubtree(root.right);
-
-        if (root.left.computable == Computable.No || root.right.computable == Computable.No)
+    private void substituteAll(Map<String, Double> values)
+    {
+        //children come before their parents, so a parent sees the children already substituted
+        for (Node node: postorder)
         {
-            root.computable = Computable.No;
+            if (node.type == Token.TokenType.Variable)
+            {
+                Double value = values.get(node.token.value);
+                if (value != null)
+                {
+                    node.type = Token.TokenType.Number;
+                    node.value = value;
+                    node.computable = Computable.Yes;
+                }
+            }
+            else if (node.left != null)
+            {
+                if (node.left.computable == Computable.No || node.right.computable == Computable.No)
+                {
+                    node.computable = Computable.No;
+                }
+                else
+                {
+                    node.computable = Computable.Yes;
+                }
+            }
         }
-        else
+
+        if (root.computable == Computable.Yes)
         {
-            root.computable = Computable.Yes;
+            result = evaluateWith(Collections.<String, Double>emptyMap());
         }
     }
 }
@@ -1,5 +1,10 @@
 package evaluator;
 
+/**
+ * A lexed token. Tokens are immutable; operators and brackets are shared instances,
+ * see {@link #of(TokenType)}. {@link TokenStream} is the compact form of a whole token list,
+ * with number values parsed and no per-token objects.
+ */
 public class Token {
     public enum TokenType
     {
@@ -13,8 +18,15 @@ public class Token {
         Division
     }
 
-    public TokenType type;
-    public String value;
+    public static final Token OPENING_BRACKET = new Token("(", TokenType.OpeningBracket);
+    public static final Token CLOSING_BRACKET = new Token(")", TokenType.ClosingBracket);
+    public static final Token PLUS = new Token("+", TokenType.Plus);
+    public static final Token MINUS = new Token("-", TokenType.Minus);
+    public static final Token PRODUCT = new Token("*", TokenType.Product);
+    public static final Token DIVISION = new Token("/", TokenType.Division);
+
+    public final TokenType type;
+    public final String value;
 
     public Token(String term, TokenType t)
     {
@@ -22,6 +34,30 @@ public class Token {
         type = t;
     }
 
+    /**
+     * The shared token of an operator or bracket.
+     */
+    public static Token of(TokenType type)
+    {
+        switch (type)
+        {
+            case OpeningBracket:
+                return OPENING_BRACKET;
+            case ClosingBracket:
+                return CLOSING_BRACKET;
+            case Plus:
+                return PLUS;
+            case Minus:
+                return MINUS;
+            case Product:
+                return PRODUCT;
+            case Division:
+                return DIVISION;
+        }
+
+        throw new IllegalArgumentException(type + " tokens have their own text");
+    }
+
     @Override
     public String toString()
     {
@@ -0,0 +1,60 @@
+package evaluator;
+
+import java.util.Queue;
+
+/**
+ * Pulls tokens one by one for the {@link SyntaxTree} parser, so it doesn't depend on
+ * how the tokens are stored.
+ */
+interface TokenCursor {
+    //moves to the next token, false at the end of the input
+    boolean advance();
+
+    Token.TokenType type();
+
+    Token token();
+
+    //value of the current Number token
+    double number();
+
+    //source offset of the current token, or the end of the input once advance returned false, -1 if unknown
+    int offset();
+
+    static TokenCursor of(final Queue<Token> tokenQueue)
+    {
+        return new TokenCursor() {
+            private Token current;
+
+            @Override
+            public boolean advance()
+            {
+                current = tokenQueue.poll();
+                return current != null;
+            }
+
+            @Override
+            public Token.TokenType type()
+            {
+                return current.type;
+            }
+
+            @Override
+            public Token token()
+            {
+                return current;
+            }
+
+            @Override
+            public double number()
+            {
+                return Double.parseDouble(current.value);
+            }
+
+            @Override
+            public int offset()
+            {
+                return -1;
+            }
+        };
+    }
+}
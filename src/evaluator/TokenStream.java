@@ -0,0 +1,147 @@
+package evaluator;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+/**
+ * Compact token list produced by {@link Lexer#scan(CharSequence)}: parallel primitive arrays
+ * of token types, source offsets and lengths, and the values of number tokens.
+ * Token text is only materialized on request. A stream can be refilled with
+ * {@link Lexer#scan(CharSequence, TokenStream)}, which reuses its arrays.
+ */
+public final class TokenStream {
+    private static final Token.TokenType[] types = Token.TokenType.values();
+
+    private CharSequence source = "";
+    private byte[] kinds = new byte[16];
+    private int[] offsets = new int[16];
+    private int[] lengths = new int[16];
+    private double[] numbers = new double[16];
+    private int size;
+
+    public TokenStream()
+    {
+    }
+
+    void reset(CharSequence source)
+    {
+        this.source = source;
+        size = 0;
+    }
+
+    void add(Token.TokenType type, int offset, int length, double number)
+    {
+        if (size == kinds.length)
+        {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            numbers = Arrays.copyOf(numbers, capacity);
+        }
+        kinds[size] = (byte) type.ordinal();
+        offsets[size] = offset;
+        lengths[size] = length;
+        numbers[size] = number;
+        size++;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public Token.TokenType type(int index)
+    {
+        return types[kinds[index]];
+    }
+
+    public int offset(int index)
+    {
+        return offsets[index];
+    }
+
+    public int length(int index)
+    {
+        return lengths[index];
+    }
+
+    public double number(int index)
+    {
+        return numbers[index];
+    }
+
+    public String text(int index)
+    {
+        return source.subSequence(offsets[index], offsets[index] + lengths[index]).toString();
+    }
+
+    public Token token(int index)
+    {
+        Token.TokenType type = type(index);
+        if (type == Token.TokenType.Number || type == Token.TokenType.Variable)
+        {
+            return new Token(text(index), type);
+        }
+        return Token.of(type);
+    }
+
+    public Queue<Token> tokenQueue()
+    {
+        Queue<Token> queue = new ArrayDeque<>(size);
+        for (int i = 0; i < size; i++)
+        {
+            queue.add(token(i));
+        }
+        return queue;
+    }
+
+    TokenCursor cursor()
+    {
+        return new TokenCursor() {
+            private int index = -1;
+
+            @Override
+            public boolean advance()
+            {
+                return ++index < size;
+            }
+
+            @Override
+            public Token.TokenType type()
+            {
+                return types[kinds[index]];
+            }
+
+            @Override
+            public Token token()
+            {
+                return TokenStream.this.token(index);
+            }
+
+            @Override
+            public double number()
+            {
+                return numbers[index];
+            }
+
+            @Override
+            public int offset()
+            {
+                return index < size ? offsets[index] : source.length();
+            }
+        };
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < size; i++)
+        {
+            builder.append(source, offsets[i], offsets[i] + lengths[i]);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,103 @@
+package evaluator_benchmarks;
+
+import evaluator.Bindings;
+import evaluator.CompiledExpression;
+import evaluator.IncrementalEvaluator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repeated evaluation of one compiled formula through the different backends.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EvaluationBenchmark {
+    private static final int ROWS = 4096;
+
+    private CompiledExpression interpreted;
+    private CompiledExpression generated;
+    private Bindings bindings;
+    private IncrementalEvaluator incremental;
+    private int tick;
+    private double[] values;
+    private double[][] columns;
+    private double[] out;
+
+    @Setup
+    public void setup(FormulaState state)
+    {
+        interpreted = state.newTree().compile();
+        generated = interpreted.withBackend(CompiledExpression.Backend.Bytecode);
+
+        values = new double[interpreted.slotCount()];
+        bindings = interpreted.bindings();
+        incremental = interpreted.incremental();
+        columns = new double[values.length][ROWS];
+        for (int slot = 0; slot < values.length; slot++)
+        {
+            values[slot] = state.values.get(interpreted.variable(slot));
+            bindings.set(slot, values[slot]);
+            incremental.set(slot, values[slot]);
+            for (int row = 0; row < ROWS; row++)
+            {
+                columns[slot][row] = values[slot] + row;
+            }
+        }
+        out = new double[ROWS];
+    }
+
+    @Benchmark
+    public double evaluateMap(FormulaState state)
+    {
+        return interpreted.evaluate(state.values);
+    }
+
+    @Benchmark
+    public double evaluateInterpreter()
+    {
+        return interpreted.evaluate(values);
+    }
+
+    @Benchmark
+    public double evaluateBindings()
+    {
+        return bindings.evaluate();
+    }
+
+    @Benchmark
+    public double evaluateBytecode()
+    {
+        return generated.evaluate(values);
+    }
+
+    //one variable changes per call, the others keep their values
+    @Benchmark
+    public double evaluateIncremental()
+    {
+        int slot = tick++ % values.length;
+        incremental.set(slot, values[slot] + (tick & 1));
+        return incremental.evaluate();
+    }
+
+    //one invocation evaluates ROWS rows
+    @Benchmark
+    public double[] evaluateBatch()
+    {
+        interpreted.evaluateBatch(columns, out);
+        return out;
+    }
+}
@@ -0,0 +1,46 @@
+package evaluator_benchmarks;
+
+import evaluator.Lexer;
+import evaluator.SyntaxTree;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Formula shared by the pipeline benchmarks, parameterized by size, number of distinct
+ * variables and bracket nesting depth.
+ */
+@State(Scope.Benchmark)
+public class FormulaState {
+    @Param({"10", "1000", "100000"})
+    public int tokens;
+
+    @Param({"1", "64"})
+    public int variables;
+
+    @Param({"1", "16"})
+    public int depth;
+
+    public String formula;
+    public Map<String, Double> values;
+
+    @Setup
+    public void setup()
+    {
+        formula = Formulas.generate(tokens, variables, depth);
+        values = new HashMap<>();
+        for (String name: newTree().variables())
+        {
+            values.put(name, 1. + values.size() / 8.);
+        }
+    }
+
+    public SyntaxTree newTree()
+    {
+        return new SyntaxTree(new Lexer(formula).tokenQueue());
+    }
+}
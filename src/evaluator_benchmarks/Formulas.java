@@ -0,0 +1,74 @@
+package evaluator_benchmarks;
+
+import java.util.Random;
+
+/**
+ * Deterministic formula generator for the benchmarks.
+ */
+final class Formulas {
+    private static final char[] operators = {'+', '*', '-', '/'};
+    private static final String[] numbers = {"1.5", "2", "0.25", "3.75"};
+
+    private Formulas()
+    {
+    }
+
+    /**
+     * A formula of roughly the given number of tokens, using the given number of distinct
+     * variables and nesting brackets at most depth levels deep.
+     */
+    static String generate(int tokens, int variables, int depth)
+    {
+        Random random = new Random(7);
+        StringBuilder builder = new StringBuilder();
+        int count = 0;
+        int open = 0;
+        for (int term = 0; count < tokens; term++)
+        {
+            if (term > 0)
+            {
+                builder.append(' ').append(operators[term % operators.length]).append(' ');
+                count++;
+            }
+            while (open < depth && random.nextInt(3) == 0)
+            {
+                builder.append('(');
+                open++;
+                count++;
+            }
+
+            if (variables > 0 && term % 2 == 0)
+            {
+                builder.append(variable(term / 2 % variables));
+            }
+            else
+            {
+                builder.append(numbers[term % numbers.length]);
+            }
+            count++;
+
+            while (open > 0 && random.nextInt(3) == 0)
+            {
+                builder.append(')');
+                open--;
+                count++;
+            }
+        }
+        for (; open > 0; open--)
+        {
+            builder.append(')');
+        }
+        return builder.toString();
+    }
+
+    //variable names can only contain letters
+    static String variable(int index)
+    {
+        StringBuilder name = new StringBuilder();
+        do {
+            name.append((char) ('a' + index % 26));
+            index /= 26;
+        } while (index > 0);
+        return name.toString();
+    }
+}
@@ -0,0 +1,44 @@
+package evaluator_benchmarks;
+
+import evaluator.Lexer;
+import evaluator.TokenStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LexerBenchmark {
+    private final TokenStream reused = new TokenStream();
+
+    @Benchmark
+    public Lexer lexer(FormulaState state)
+    {
+        return new Lexer(state.formula);
+    }
+
+    @Benchmark
+    public TokenStream scan(FormulaState state)
+    {
+        return Lexer.scan(state.formula);
+    }
+
+    @Benchmark
+    public TokenStream scanReused(FormulaState state)
+    {
+        Lexer.scan(state.formula, reused);
+        return reused;
+    }
+}
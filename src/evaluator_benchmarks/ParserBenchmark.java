@@ -0,0 +1,65 @@
+package evaluator_benchmarks;
+
+import evaluator.Lexer;
+import evaluator.SyntaxTree;
+import evaluator.Token;
+import evaluator.TokenStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shunting-yard parse throughput on long formulas, lexing excluded.
+ * Run against the previous revision of SyntaxTree to compare parser changes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int tokens;
+
+    private Token[] tokenArray;
+    private TokenStream tokenStream;
+
+    @Setup
+    public void setup()
+    {
+        String formula = Formulas.generate(tokens, 8, 4);
+        tokenArray = new Lexer(formula).tokenQueue().toArray(new Token[0]);
+        tokenStream = Lexer.scan(formula);
+    }
+
+    @Benchmark
+    public SyntaxTree parseTokenQueue()
+    {
+        //the parser consumes its queue, so every invocation needs a fresh one
+        Queue<Token> queue = new ArrayDeque<>(tokenArray.length);
+        for (Token token: tokenArray)
+        {
+            queue.add(token);
+        }
+        return new SyntaxTree(queue);
+    }
+
+    @Benchmark
+    public SyntaxTree parseTokenStream()
+    {
+        return new SyntaxTree(tokenStream);
+    }
+}
@@ -0,0 +1,153 @@
+package evaluator_benchmarks;
+
+import evaluator.Lexer;
+import evaluator.SyntaxTree;
+import evaluator.Token;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SyntaxTree construction, substitute and evaluate, each measured on its own.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SyntaxTreeBenchmark {
+    @State(Scope.Thread)
+    public static class Substituted {
+        SyntaxTree tree;
+
+        @Setup
+        public void setup(FormulaState state)
+        {
+            tree = state.newTree();
+            tree.substitute(state.values);
+        }
+    }
+
+    /**
+     * Construction consumes its queue, so it gets a queue that is rewound over the same
+     * tokens instead of refilled, and neither the timer nor the GC profiler sees any setup.
+     */
+    @State(Scope.Thread)
+    public static class Tokens {
+        ReplayQueue queue;
+
+        @Setup
+        public void setup(FormulaState state)
+        {
+            queue = new ReplayQueue(new Lexer(state.formula).tokenQueue().toArray(new Token[0]));
+        }
+    }
+
+    /**
+     * Substitute changes its tree, so every call needs a fresh one. They are built BATCH at a time
+     * between invocations, which spreads the per-invocation setup over BATCH timed calls.
+     * The trees are parsed from the same tokens as in construct, without lexing. The GC profiler
+     * still counts them, so substitute allocates what its rate reports minus the rate of construct.
+     */
+    @State(Scope.Thread)
+    public static class Trees {
+        static final int BATCH = 16;
+
+        final SyntaxTree[] trees = new SyntaxTree[BATCH];
+
+        @Setup(Level.Invocation)
+        public void setup(Tokens tokens)
+        {
+            for (int i = 0; i < BATCH; i++)
+            {
+                tokens.queue.rewind();
+                trees[i] = new SyntaxTree(tokens.queue);
+            }
+        }
+    }
+
+    //queue over a fixed array of tokens, poll consumes them until rewind starts over
+    static final class ReplayQueue extends AbstractQueue<Token> {
+        private final Token[] tokens;
+        private int next;
+
+        ReplayQueue(Token[] tokens)
+        {
+            this.tokens = tokens;
+        }
+
+        void rewind()
+        {
+            next = 0;
+        }
+
+        @Override
+        public Token poll()
+        {
+            return next < tokens.length ? tokens[next++] : null;
+        }
+
+        @Override
+        public Token peek()
+        {
+            return next < tokens.length ? tokens[next] : null;
+        }
+
+        @Override
+        public boolean offer(Token token)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Iterator<Token> iterator()
+        {
+            return Arrays.asList(tokens).subList(next, tokens.length).iterator();
+        }
+
+        @Override
+        public int size()
+        {
+            return tokens.length - next;
+        }
+    }
+
+    @Benchmark
+    public SyntaxTree construct(Tokens tokens)
+    {
+        tokens.queue.rewind();
+        return new SyntaxTree(tokens.queue);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Trees.BATCH)
+    public void substitute(Trees trees, FormulaState state, Blackhole blackhole)
+    {
+        for (SyntaxTree tree: trees.trees)
+        {
+            tree.substitute(state.values);
+            blackhole.consume(tree);
+        }
+    }
+
+    @Benchmark
+    public double evaluate(Substituted substituted)
+    {
+        return substituted.tree.evaluate();
+    }
+}
@@ -0,0 +1,64 @@
+package evaluator_tests;
+
+import evaluator.Lexer;
+import evaluator.LexicalErrorException;
+import evaluator.Metrics;
+import evaluator.MetricsRecorder;
+import evaluator.SyntaxErrorException;
+import evaluator.SyntaxTree;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+
+public class MetricsTest {
+    @Test
+    public void recorderTests()
+    {
+        MetricsRecorder recorder = new MetricsRecorder();
+        Metrics.setListener(recorder);
+        try {
+            SyntaxTree tree = new SyntaxTree(new Lexer("(x + 1) * 2").tokenQueue());
+            tree.substitute(Collections.singletonMap("x", 3.));
+            Assert.assertEquals(8, tree.evaluate(), 0);
+            Assert.assertEquals(8, tree.compile().evaluate(), 0);
+
+            try {
+                new Lexer("x_y");
+                Assert.fail("Lexer accepted a wrong variable name");
+            }
+            catch (LexicalErrorException ignored)
+            {
+            }
+            try {
+                new SyntaxTree(Lexer.scan("x +"));
+                Assert.fail("Parser accepted a missing operand");
+            }
+            catch (SyntaxErrorException ignored)
+            {
+            }
+        }
+        finally
+        {
+            Metrics.setListener(null);
+        }
+
+        Assert.assertEquals(2, recorder.count(Metrics.Stage.Lex));
+        Assert.assertEquals(1, recorder.count(Metrics.Stage.Parse));
+        Assert.assertEquals(1, recorder.count(Metrics.Stage.Substitute));
+        Assert.assertEquals(2, recorder.count(Metrics.Stage.Evaluate));
+        Assert.assertEquals(2, recorder.latency(Metrics.Stage.Evaluate).count());
+
+        Assert.assertEquals(1, recorder.failures(Metrics.Stage.Lex));
+        Assert.assertEquals(Collections.singletonMap(SyntaxErrorException.class.getName(), 1L),
+                recorder.failuresByType(Metrics.Stage.Parse));
+
+        Assert.assertEquals(7, recorder.tokens().sum());
+        Assert.assertEquals(3, recorder.depths().sum());
+        Assert.assertEquals(3, recorder.depths().quantile(0.5));
+
+        //nothing is recorded once metrics are off
+        new SyntaxTree(new Lexer("1 + 2").tokenQueue()).evaluate();
+        Assert.assertEquals(2, recorder.count(Metrics.Stage.Evaluate));
+    }
+}
@@ -2,6 +2,7 @@ package evaluator_tests;
 import evaluator.Lexer;
 import evaluator.LexicalErrorException;
 import evaluator.Token;
+import evaluator.TokenStream;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -69,4 +70,73 @@ public class TokenTest {
         Lexer lexer = new Lexer(input);
         Assert.assertEquals("[(, abc, +, d, ), +, 123, -, 9]", Arrays.toString(lexer.tokenQueue().toArray()));
     }
+
+    @Test
+    public void scanTests()
+    {
+        String[] inputs = new String[]{
+                "(abc + d) + 123 - 9",
+                "x*.5/(0.25-yy)",
+                "  12345678901234567890.5 * 3.14159265358979323846 ",
+                "0.1+0.2+1234.5678"
+        };
+
+        TokenStream tokens = new TokenStream();
+        for (String input: inputs)
+        {
+            Lexer.scan(input, tokens);
+            Token[] expected = new Lexer(input).tokenQueue().toArray(new Token[0]);
+            Assert.assertEquals(input, expected.length, tokens.size());
+            for (int i = 0; i < expected.length; i++)
+            {
+                Assert.assertEquals(expected[i].type, tokens.type(i));
+                Assert.assertEquals(expected[i].value, tokens.text(i));
+                if (expected[i].type == Token.TokenType.Number)
+                {
+                    Assert.assertEquals(Double.parseDouble(expected[i].value), tokens.number(i), 0);
+                }
+            }
+        }
+
+        Assert.assertEquals("[(, abc, +, d, ), +, 123, -, 9]",
+                Arrays.toString(Lexer.scan("(abc + d) + 123 - 9").tokenQueue().toArray()));
+    }
+
+    @Test
+    public void sharedOperatorTests()
+    {
+        Token[] lexed = new Lexer("(a + 1) * 2").tokenQueue().toArray(new Token[0]);
+        Token[] scanned = Lexer.scan("(a + 1) * 2").tokenQueue().toArray(new Token[0]);
+        int[] operators = new int[]{0, 2, 4, 5};
+        for (int i: operators)
+        {
+            Assert.assertSame(Token.of(lexed[i].type), lexed[i]);
+            Assert.assertSame(lexed[i], scanned[i]);
+        }
+        Assert.assertEquals("1", scanned[3].value);
+    }
+
+    @Test
+    public void wrongScanTests()
+    {
+        String[] wrongInputs = new String[]{
+                "1.2.3",
+                "12.",
+                "a_b",
+                "1 % 2",
+                "."
+        };
+
+        for (String input: wrongInputs)
+        {
+            try {
+                Lexer.scan(input);
+                Assert.fail("Incorrect sequence was recognized as a token: " + input);
+            }
+            catch (LexicalErrorException ex)
+            {
+                //expected
+            }
+        }
+    }
 }
@@ -0,0 +1,121 @@
+package formulagraph_tests;
+
+import evaluator.CyclicDependencyException;
+import evaluator.FormulaGraph;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+public class FormulaGraphTest {
+    @Test
+    public void dependencyTests()
+    {
+        FormulaGraph graph = new FormulaGraph()
+                .define("total", "net + tax")
+                .define("tax", "net * rate")
+                .define("net", "price * quantity")
+                .set("price", 2.5)
+                .set("quantity", 4)
+                .set("rate", 0.2);
+
+        Assert.assertEquals(Arrays.asList("net", "tax", "total"), graph.order());
+        Assert.assertEquals(10, graph.get("net"), 0);
+        Assert.assertEquals(12, graph.get("total"), 0);
+
+        graph.set("rate", 0.5);
+        Assert.assertEquals(15, graph.get("total"), 0);
+        Assert.assertEquals(10, graph.get("net"), 0);
+
+        graph.define("tax", "1");
+        Assert.assertEquals(11, graph.get("total"), 0);
+
+        Assert.assertTrue(Double.isNaN(new FormulaGraph().define("y", "x * 2").get("y")));
+    }
+
+    @Test
+    public void cycleTests()
+    {
+        FormulaGraph graph = new FormulaGraph()
+                .define("a", "b + 1")
+                .define("b", "c * 2")
+                .set("c", 1);
+
+        try {
+            graph.define("x", "x + 1");
+            Assert.fail("Self reference was accepted");
+        }
+        catch (CyclicDependencyException e)
+        {
+            Assert.assertEquals("cyclic dependency: x -> x", e.getMessage());
+        }
+
+        try {
+            graph.define("c", "a * 2");
+            Assert.fail("Cycle was accepted");
+        }
+        catch (CyclicDependencyException e)
+        {
+            Assert.assertEquals("cyclic dependency: c -> a -> b -> c", e.getMessage());
+        }
+
+        //the failed definition left the graph unchanged
+        Assert.assertEquals(3, graph.get("a"), 0);
+        graph.set("c", 2);
+        Assert.assertEquals(5, graph.get("a"), 0);
+    }
+
+    @Test
+    public void parallelTests()
+    {
+        int width = 500;
+        FormulaGraph sequential = new FormulaGraph();
+        FormulaGraph parallel = new FormulaGraph();
+        for (FormulaGraph graph: Arrays.asList(sequential, parallel))
+        {
+            for (int i = 0; i < width; i++)
+            {
+                String name = name("f", i);
+                graph.define(name, "(x + " + i + ") * (y - " + i + ")");
+                graph.define(name("g", i), name + " / 2 + " + name("f", (i + 1) % width));
+            }
+            graph.set("x", 3).set("y", 4);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            parallel.recompute(pool);
+            for (int round = 0; round < 3; round++)
+            {
+                for (int i = 0; i < width; i++)
+                {
+                    Assert.assertEquals(sequential.get(name("g", i)), parallel.get(name("g", i)), 0);
+                }
+                sequential.set("y", round);
+                parallel.set("y", round);
+                parallel.recompute(pool);
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        List<String> order = sequential.order();
+        Assert.assertEquals(2 * width, order.size());
+        Assert.assertTrue(order.indexOf(name("f", 0)) < order.indexOf(name("g", width - 1)));
+    }
+
+    //variable names are letters only
+    private static String name(String prefix, int index)
+    {
+        StringBuilder builder = new StringBuilder(prefix);
+        do {
+            builder.append((char) ('a' + index % 26));
+            index /= 26;
+        } while (index > 0);
+        return builder.toString();
+    }
+}
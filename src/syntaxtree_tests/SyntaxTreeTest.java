@@ -1,12 +1,27 @@
 package syntaxtree_tests;
 
+import evaluator.Bindings;
+import evaluator.CompiledExpression;
 import evaluator.Evaluator;
+import evaluator.ExpressionCache;
 import evaluator.Lexer;
+import evaluator.LexicalErrorException;
+import evaluator.ParseLimits;
+import evaluator.StreamingLexer;
 import evaluator.SyntaxErrorException;
 import evaluator.SyntaxTree;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -76,6 +91,362 @@ public class SyntaxTreeTest {
 //        System.out.println(tree.evaluate());
     }
 
+    @Test
+    public void substituteTests()
+    {
+        Lexer lexer = new Lexer("x * 2.5 + y");
+        SyntaxTree tree = new SyntaxTree(lexer.tokenQueue());
+
+        Map<String, Double> values = new HashMap<>();
+        values.put("x", 2.);
+        values.put("y", .5);
+        tree.substitute(values);
+
+        Assert.assertTrue(tree.isComputable());
+        Assert.assertEquals("2.0*2.5+0.5", tree.toString());
+        Assert.assertEquals(5.5, tree.evaluate(), 0);
+        Assert.assertEquals(5.5, tree.evaluate(), 0);
+    }
+
+    @Test
+    public void compiledTests()
+    {
+        Lexer lexer = new Lexer("abc+cde-2*myvar+urvar");
+        CompiledExpression expression = new SyntaxTree(lexer.tokenQueue()).compile();
+        Assert.assertEquals("[abc, cde, myvar, urvar]", expression.variables().toString());
+        Assert.assertFalse(expression.isComputable());
+
+        Map<String, Double> values = new HashMap<>();
+        values.put("abc", 12.);
+        values.put("cde", 1.);
+        values.put("myvar", 1.);
+        values.put("urvar", 1.);
+        Assert.assertEquals(12., expression.evaluate(values), 0);
+
+        //the same instance is evaluated with different bindings
+        values.put("urvar", 5.);
+        Assert.assertEquals(16., expression.evaluate(values), 0);
+
+        values.remove("urvar");
+        try {
+            expression.evaluate(values);
+        }
+        catch (SyntaxErrorException e)
+        {
+            return;
+        }
+        Assert.fail("Unbound variable was not reported");
+    }
+
+    @Test
+    public void slotTests()
+    {
+        Lexer lexer = new Lexer("x * x + y / 2 - x");
+        CompiledExpression expression = new SyntaxTree(lexer.tokenQueue()).compile();
+        Assert.assertEquals(2, expression.slotCount());
+        Assert.assertEquals(0, expression.slot("x"));
+        Assert.assertEquals(1, expression.slot("y"));
+        Assert.assertEquals(-1, expression.slot("z"));
+        Assert.assertEquals(8., expression.evaluate(3., 4.), 0);
+
+        Bindings bindings = expression.bindings();
+        bindings.set("y", 4.);
+        for (int x = 0; x < 10; x++)
+        {
+            bindings.set(0, x);
+            Assert.assertEquals(x * x + 2. - x, bindings.evaluate(), 0);
+        }
+    }
+
+    @Test
+    public void bytecodeTests()
+    {
+        String[] expressions = new String[]{
+                "1 + 2 - 7 * 0",
+                "(24 / 6) + 6",
+                "a * (b - 2.5) / (c + d * 0)",
+                "a - b - c - d - 1 / a",
+                "(((a + b) * (c + d)) / ((a - b) * (c - d)))",
+                "(a * b + c) / (a * b + c) - (a * b + c) * d + a * b"
+        };
+        double[] values = new double[]{1.5, -2., 3.25, 7.};
+
+        for (String source: expressions)
+        {
+            CompiledExpression interpreted = new SyntaxTree(new Lexer(source).tokenQueue()).compile();
+            CompiledExpression generated = interpreted.withBackend(CompiledExpression.Backend.Bytecode);
+            Assert.assertEquals(CompiledExpression.Backend.Bytecode, generated.backend());
+            Assert.assertEquals(source, interpreted.evaluate(values), generated.evaluate(values), 0);
+        }
+    }
+
+    @Test
+    public void deepExpressionTests()
+    {
+        int depth = 100000;
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < depth; i++)
+        {
+            builder.append("x-(");
+        }
+        builder.append('1');
+        for (int i = 0; i < depth; i++)
+        {
+            builder.append(')');
+        }
+
+        SyntaxTree tree = new SyntaxTree(new Lexer(builder.toString()).tokenQueue());
+        CompiledExpression expression = tree.compile();
+        //x - (x - (... - 1)) alternates between 1 and x - 1
+        Assert.assertEquals(1., expression.evaluate(5.), 0);
+        Assert.assertEquals(1., expression.bindings().set("x", 7.).evaluate(), 0);
+        Assert.assertEquals(4 * depth + "1.0".length(), expression.toString().length());
+
+        //no traversal of the tree recurses
+        Assert.assertEquals(2 * depth + 1, tree.toString().length());
+        Assert.assertEquals(1., tree.evaluate(Collections.singletonMap("x", 5.)), 0);
+        tree.substitute(Collections.singletonMap("x", 5.));
+        Assert.assertTrue(tree.isComputable());
+        Assert.assertEquals(1., tree.evaluate(), 0);
+    }
+
+    @Test
+    public void limitTests()
+    {
+        ParseLimits limits = new ParseLimits(7, 3, 2);
+        Map<String, Double> values = new HashMap<>();
+        values.put("a", 1.);
+        values.put("b", 2.5);
+        Assert.assertEquals(7., new SyntaxTree(Lexer.scan("(a + b) * 2", limits), limits).evaluate(values), 0);
+
+        String[] tooLarge = new String[]{
+                "(((((1)))))",
+                "1 - 2 - 3 - 4",
+                "a + b + c"
+        };
+        String[] messages = new String[]{
+                "expression has more than 7 tokens",
+                "expression is deeper than 3 levels",
+                "expression has more than 2 variables"
+        };
+        for (int i = 0; i < tooLarge.length; i++)
+        {
+            try {
+                new SyntaxTree(new Lexer(tooLarge[i]).tokenQueue(), limits);
+                Assert.fail("Parser accepted " + tooLarge[i]);
+            }
+            catch (SyntaxErrorException e)
+            {
+                Assert.assertEquals(messages[i], e.getMessage());
+            }
+        }
+
+        //the lexer stops at the first token over the limit
+        try {
+            Lexer.scan("(((((1)))))", limits);
+            Assert.fail("Lexer accepted too many tokens");
+        }
+        catch (LexicalErrorException e)
+        {
+            Assert.assertEquals(7, e.offset());
+        }
+
+        Assert.assertEquals(7, Evaluator.tryCompile("(((((1)))))", limits).errorOffset());
+
+        ParseLimits shortTokens = new ParseLimits(7, 3, 2, 4);
+        Assert.assertEquals(2., new SyntaxTree(Lexer.scan("abcd / 12.5", shortTokens), shortTokens)
+                .evaluate(Collections.singletonMap("abcd", 25.)), 0);
+        for (String tooLong: new String[]{"1 + abcde", "1 + 12345", "1 + 1.234"})
+        {
+            try {
+                Lexer.scan(tooLong, shortTokens);
+                Assert.fail("Lexer accepted " + tooLong);
+            }
+            catch (LexicalErrorException e)
+            {
+                Assert.assertEquals("token is longer than 4 characters", e.getMessage());
+                Assert.assertEquals(4, e.offset());
+            }
+        }
+
+        //an endless name from a reader is rejected once it is too long, not buffered whole
+        Reader endless = new Reader() {
+            @Override
+            public int read(char[] buffer, int offset, int length)
+            {
+                Arrays.fill(buffer, offset, offset + length, 'a');
+                return length;
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+        try {
+            new SyntaxTree(new StreamingLexer(endless), shortTokens);
+            Assert.fail("Streaming lexer accepted an endless name");
+        }
+        catch (LexicalErrorException e)
+        {
+            Assert.assertEquals("token is longer than 4 characters", e.getMessage());
+            Assert.assertEquals(0, e.offset());
+        }
+    }
+
+    @Test
+    public void simplificationTests()
+    {
+        Map<String, String> testCases = new HashMap<>();
+        testCases.put("2 * 3.5 + x", "(7.0+x)");
+        testCases.put("x * 1 - 0", "x");
+        //adding 0.0 turns -0.0 into 0.0, only adding -0.0 is dropped
+        testCases.put("x + 0", "(x+0.0)");
+        testCases.put("0 + x", "(0.0+x)");
+        testCases.put("x + 0 * (0 - 1)", "x");
+        testCases.put("1 * x / 1 - 0 + y * (4 - 3)", "(x+y)");
+        testCases.put("(1 + 3) * 4", "16.0");
+
+        for (Map.Entry<String, String> test: testCases.entrySet())
+        {
+            CompiledExpression expression = new SyntaxTree(new Lexer(test.getKey()).tokenQueue()).compile();
+            Assert.assertEquals(test.getKey(), test.getValue(), expression.toString());
+        }
+
+        SyntaxTree tree = new SyntaxTree(new Lexer("x * y + z").tokenQueue());
+        Map<String, Double> values = new HashMap<>();
+        values.put("x", 2.);
+        values.put("y", 3.);
+        tree.substitute(values);
+        Assert.assertEquals("(6.0+z)", tree.compile().toString());
+
+        SyntaxTree sum = new SyntaxTree(new Lexer("x + 0").tokenQueue());
+        double negativeZero = sum.compile().evaluate(-0.);
+        Assert.assertEquals(Double.doubleToRawLongBits(sum.evaluate(Collections.singletonMap("x", -0.))),
+                Double.doubleToRawLongBits(negativeZero));
+        Assert.assertEquals(Double.doubleToRawLongBits(0.), Double.doubleToRawLongBits(negativeZero));
+
+        CompiledExpression shared = new SyntaxTree(new Lexer("(x * y + 1) * (x * y + 1) - x * y").tokenQueue()).compile();
+        Assert.assertEquals(13., shared.evaluate(1., 3.), 0);
+        Assert.assertEquals(13., shared.bindings().set(0, 1.).set(1, 3.).evaluate(), 0);
+    }
+
+    @Test
+    public void specializationTests()
+    {
+        SyntaxTree tree = new SyntaxTree(new Lexer("(a * 2 + b) * x - c / y").tokenQueue());
+
+        Map<String, Double> tenant = new HashMap<>();
+        tenant.put("a", 1.5);
+        tenant.put("b", 1.);
+        tenant.put("c", 8.);
+        CompiledExpression specialized = tree.specialize(tenant);
+        Assert.assertEquals("[x, y]", specialized.variables().toString());
+        Assert.assertEquals("((4.0*x)-(8.0/y))", specialized.toString());
+        Assert.assertEquals(4., specialized.evaluate(2., 2.), 0);
+
+        //the tree itself is not substituted
+        Assert.assertEquals("a*2+b*x-c/y", tree.toString());
+        Assert.assertEquals("[a, b, x, c, y]", tree.compile().variables().toString());
+
+        Map<String, Double> request = new HashMap<>();
+        request.put("y", 4.);
+        CompiledExpression remainder = specialized.specialize(request);
+        Assert.assertEquals("[x]", remainder.variables().toString());
+        Assert.assertEquals(6., remainder.evaluate(2.), 0);
+        Assert.assertEquals(6., tree.compile().specialize(tenant).specialize(request).evaluate(2.), 0);
+    }
+
+    @Test
+    public void tokenStreamTests()
+    {
+        String expression = "abc+cde-2*myvar+urvar";
+        SyntaxTree tree = new SyntaxTree(Lexer.scan(expression));
+        Assert.assertEquals(expression, tree.toString());
+        Assert.assertEquals(4, tree.variables().size());
+        Assert.assertEquals(10., new SyntaxTree(Lexer.scan("(24 / 6) + 6")).evaluate(), 0);
+    }
+
+    @Test
+    public void streamingTests() throws IOException
+    {
+        StringBuilder builder = new StringBuilder("0");
+        for (int i = 0; i < 2000; i++)
+        {
+            builder.append(" + (x * 1.25 - 3) / 2");
+        }
+        String expression = builder.toString();
+        String expected = new SyntaxTree(new Lexer(expression).tokenQueue()).toString();
+
+        SyntaxTree fromReader = new SyntaxTree(new StreamingLexer(new StringReader(expression)));
+        Assert.assertEquals(expected, fromReader.toString());
+
+        ByteBuffer bytes = ByteBuffer.wrap(expression.getBytes(StandardCharsets.US_ASCII));
+        SyntaxTree fromBuffer = new SyntaxTree(new StreamingLexer(bytes));
+        Assert.assertEquals(expected, fromBuffer.toString());
+
+        Path file = Files.createTempFile("expression", ".txt");
+        try {
+            Files.write(file, expression.getBytes(StandardCharsets.US_ASCII));
+            SyntaxTree fromFile = new SyntaxTree(StreamingLexer.map(file));
+            Assert.assertEquals(expected, fromFile.toString());
+            Assert.assertEquals(-500., fromFile.compile().evaluate(2.), 0);
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void precedenceTests()
+    {
+        Map<String, String> testCases = new HashMap<>();
+        testCases.put("a - b - c", "((a-b)-c)");
+        testCases.put("a - b * c / d + e", "((a-((b*c)/d))+e)");
+        testCases.put("a / (b - c) * d", "((a/(b-c))*d)");
+        testCases.put("((a))", "a");
+
+        for (Map.Entry<String, String> test: testCases.entrySet())
+        {
+            CompiledExpression expression = new SyntaxTree(new Lexer(test.getKey()).tokenQueue()).compile();
+            Assert.assertEquals(test.getKey(), test.getValue(), expression.toString());
+        }
+
+        String[] unbalanced = new String[]{"(a + b", "a + b)", "((a) * b"};
+        for (String test: unbalanced)
+        {
+            try {
+                new SyntaxTree(new Lexer(test).tokenQueue());
+                Assert.fail("Unbalanced brackets were accepted: " + test);
+            }
+            catch (SyntaxErrorException e)
+            {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void cacheTests()
+    {
+        ExpressionCache cache = new ExpressionCache(2);
+        Assert.assertEquals(16., Evaluator.evaluate("(1 + 3) * 4", cache), 0);
+        Assert.assertEquals(16., Evaluator.evaluate("(1 + 3) * 4", cache), 0);
+        Assert.assertEquals(1, cache.misses());
+        Assert.assertEquals(1, cache.hits());
+
+        Evaluator.evaluate("1 + 2", cache);
+        Evaluator.evaluate("(1 + 3) * 4", cache);
+        Evaluator.evaluate("2 * 2", cache);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.evictions());
+
+        //"1 + 2" was the least recently used one
+        Evaluator.evaluate("1 + 2", cache);
+        Assert.assertEquals(4, cache.misses());
+    }
+
     public static void main(String[] args)
     {
         String expression = "(1 + 2 -5 ) * 25";